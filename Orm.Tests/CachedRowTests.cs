@@ -0,0 +1,32 @@
+﻿using NUnit.Framework;
+using OrmExample.Mapping;
+
+namespace Orm.Tests
+{
+    [TestFixture]
+    public class CachedRowTests
+    {
+        [Test]
+        public void BytesShouldBeReadInChunks()
+        {
+            CachedRow sut = new CachedRow(new[] { "Data" }, new object[] { new byte[] { 1, 2, 3, 4, 5 } });
+            byte[] buffer = new byte[4];
+
+            Assert.AreEqual(5, sut.GetBytes(0, 0, null, 0, 0));
+            Assert.AreEqual(3, sut.GetBytes(0, 2, buffer, 1, 3));
+            CollectionAssert.AreEqual(new byte[] { 0, 3, 4, 5 }, buffer);
+            Assert.AreEqual(0, sut.GetBytes(0, 5, buffer, 0, 4));
+        }
+
+        [Test]
+        public void CharsShouldBeReadInChunks()
+        {
+            CachedRow sut = new CachedRow(new[] { "Name" }, new object[] { "John Doe" });
+            char[] buffer = new char[4];
+
+            Assert.AreEqual(8, sut.GetChars(0, 0, null, 0, 0));
+            Assert.AreEqual(3, sut.GetChars(0, 5, buffer, 0, 4));
+            Assert.AreEqual("Doe", new string(buffer, 0, 3));
+        }
+    }
+}
@@ -4,6 +4,7 @@ using System.Configuration;
 using System.Data;
 using System.Data.SqlClient;
 using System.Linq;
+using System.Threading.Tasks;
 using FluentAssertions;
 using NUnit.Framework;
 using OrmExample.Entities;
@@ -16,6 +17,9 @@ namespace Orm.Tests
     public class ClientMapperTests
     {
         private const string ConnectionStringName = "testConnectionString";//"Data Source=(localdb)\v11.0;Initial Catalog=OrmExampleEf;Integrated Security=true;";
+        // same as scripts/addClientsVersion.sql
+        private const string AddVersionColumn = "IF COL_LENGTH('dbo.Clients', 'Version') IS NULL " +
+            "ALTER TABLE [dbo].[Clients] ADD [Version] INT NOT NULL CONSTRAINT [DF_dbo.Clients_Version] DEFAULT 0";
         private MappingContext sut;
         private string connectionString;
 
@@ -23,6 +27,7 @@ namespace Orm.Tests
         public void TestsSetup()
         {
             connectionString = ConfigurationManager.ConnectionStrings[ConnectionStringName].ConnectionString;
+            ExecuteOnDb(AddVersionColumn);
             CleanDataInTable();
         }
 
@@ -126,6 +131,173 @@ namespace Orm.Tests
             Assert.AreEqual("Rynek 5, Krakow", clientInDb.Address);
         }
 
+        [Test]
+        public void BatchedSaveChangesShouldInsertAllClients()
+        {
+            sut.BatchSize = 2;
+            Client[] clients = Enumerable.Range(0, 5)
+                                         .Select(i => new Client { Name = "Client " + i, Address = "Rynek " + i })
+                                         .ToArray();
+            foreach (Client client in clients)
+            {
+                sut.ClientMapper.Insert(client);
+            }
+            sut.SaveChanges();
+            Assert.AreEqual(5, GetClientsCount());
+            Assert.AreEqual(5, clients.Select(c => c.Id).Distinct().Count(id => id != 0));
+        }
+
+        [Test]
+        public void PooledContextShouldReturnConnectionsAfterCommit()
+        {
+            using (ConnectionPool pool = new ConnectionPool(connectionString, 1, 2))
+            {
+                MappingConfiguration configuration = new MappingConfiguration(connectionString)
+                    {
+                        ConnectionProvider = pool,
+                        BindConnectionToUnitOfWork = true
+                    };
+                MappingContext pooled = new MappingContext(configuration) { BatchSize = 10 };
+                pooled.ClientMapper.Insert(new Client { Name = "Client", Address = "Rynek" });
+                pooled.ClientMapper.GetAll().ToList();
+                pooled.SaveChanges();
+
+                Assert.AreEqual(1, GetClientsCount());
+                Assert.AreEqual(0, pool.Active);
+                Assert.AreEqual(1, pool.Idle);
+                Assert.AreEqual(2, pool.Acquisitions);
+            }
+        }
+
+        [Test]
+        public void ForkedReadsShouldNotShareTheBoundConnection()
+        {
+            int[] ids = Enumerable.Range(0, 4).Select(i => InsertClient()).ToArray();
+            MappingConfiguration configuration = new MappingConfiguration(connectionString) { BindConnectionToUnitOfWork = true };
+            MappingContext bound = new MappingContext(configuration);
+            using (UnitOfWork.BeginScope())
+            {
+                Client[] clients = Task.WhenAll(ids.Select(id => Task.Run(() => bound.ClientMapper.GetById(id)))).Result;
+                CollectionAssert.AreEqual(ids, clients.Select(client => client.Id));
+            }
+        }
+
+        [Test]
+        public void FindManyShouldApplyWhereClause()
+        {
+            int clientId = InsertClient();
+            InsertClient();
+            Client[] clients = sut.ClientMapper.FindMany(new StatementSource("Id = @Id").With("Id", clientId)).ToArray();
+            Assert.AreEqual(1, clients.Length);
+            Assert.AreEqual(clientId, clients[0].Id);
+        }
+
+        [Test]
+        public void ParallelGetByIdAsyncShouldReturnOneInstancePerId()
+        {
+            int[] ids = { InsertClient(), InsertClient() };
+            Task<Client>[] loads = Enumerable.Range(0, 10)
+                                             .Select(i => sut.ClientMapper.GetByIdAsync(ids[i % 2]))
+                                             .ToArray();
+            Client[] clients = Task.WhenAll(loads).Result;
+
+            Assert.AreEqual(2, clients.Distinct().Count());
+            Assert.IsTrue(ReferenceEquals(clients[0], sut.ClientMapper.GetById(ids[0])));
+            Assert.IsTrue(ReferenceEquals(clients[1], sut.ClientMapper.GetById(ids[1])));
+        }
+
+        [Test]
+        public void IndependentFindManyAsyncShouldRunWithinQueryLimit()
+        {
+            using (ConnectionPool pool = new ConnectionPool(connectionString, 1, 2))
+            {
+                MappingConfiguration configuration = new MappingConfiguration(connectionString)
+                    {
+                        ConnectionProvider = pool,
+                        MaxConcurrentQueries = 2
+                    };
+                MappingContext pooled = new MappingContext(configuration);
+                int clientId = InsertClient();
+                InsertClient();
+
+                Task<IList<Client>> all = pooled.ClientMapper.FindManyAsync(new StatementSource());
+                Task<IList<Client>> one = pooled.ClientMapper.FindManyAsync(new StatementSource("Id = @Id").With("Id", clientId));
+                Task<IList<Client>> none = pooled.ClientMapper.FindManyAsync(new StatementSource("Id = @Id").With("Id", -1));
+                Task.WaitAll(all, one, none);
+
+                Assert.AreEqual(2, all.Result.Count);
+                Assert.IsTrue(ReferenceEquals(one.Result.Single(), all.Result.Single(c => c.Id == clientId)));
+                Assert.AreEqual(0, none.Result.Count);
+                Assert.AreEqual(0, pool.Active);
+            }
+        }
+
+        [Test]
+        public void PagesShouldFollowOrderingUntilLastPage()
+        {
+            // equal names make the Id tie-break decide between pages
+            ExecuteOnDb("INSERT INTO Clients (Name, Address) VALUES ('Cecil', 'a'), ('Adam', 'b'), ('Bob', 'c'), ('Adam', 'd'), ('Dan', 'e')");
+            StatementSource byName = new StatementSource().OrderBy("Name");
+            List<string> addresses = new List<string>();
+            int pages = 0;
+            string token = null;
+            do
+            {
+                Page<Client> page = sut.ClientMapper.GetPage(byName, 2, token, true);
+                addresses.AddRange(page.Items.Select(c => c.Address));
+                token = page.ContinuationToken;
+                pages++;
+            }
+            while (token != null);
+
+            CollectionAssert.AreEqual(new[] { "b", "d", "c", "a", "e" }, addresses);
+            Assert.AreEqual(3, pages);
+        }
+
+        [Test]
+        public void TokenShouldNotBeAcceptedForAnotherOrdering()
+        {
+            InsertClient();
+            InsertClient();
+            string token = sut.ClientMapper.GetPage(new StatementSource().OrderBy("Name"), 1, null, true).ContinuationToken;
+            Assert.Throws<ArgumentException>(() => sut.ClientMapper.GetPage(new StatementSource().OrderBy("Address"), 1, token, true));
+        }
+
+        [Test]
+        public void UnregisteredPagesShouldNotBeKeptInIdentityMap()
+        {
+            int clientId = InsertClient();
+            Client paged = sut.ClientMapper.GetPage(new StatementSource(), 10, null, false).Items.Single();
+            Client found = sut.ClientMapper.GetById(clientId);
+            Assert.AreEqual("John Doe", paged.Name);
+            Assert.IsFalse(ReferenceEquals(paged, found));
+        }
+
+        [Test]
+        public void StreamedClientsShouldNotBeKeptInIdentityMap()
+        {
+            int clientId = InsertClient();
+            Client streamed = sut.ClientMapper.Stream(new StatementSource(), false).Single();
+            Client found = sut.ClientMapper.GetById(clientId);
+            Assert.AreEqual("John Doe", streamed.Name);
+            Assert.IsFalse(ReferenceEquals(streamed, found));
+        }
+
+        [Test]
+        public void ProjectionShouldStoreRepeatedNamesOnce()
+        {
+            int firstId = InsertClient();
+            InsertClient();
+            InsertClient();
+
+            ColumnarResult result = sut.ClientMapper.Project(new StatementSource().OrderBy("Id"), "Name");
+
+            Assert.AreEqual(3, result.Count);
+            Assert.AreEqual(firstId, result[0].Id);
+            Assert.IsTrue(result.All(row => row.GetString("Name") == "John Doe"));
+            Assert.AreEqual(1, result.GetDistinctCount(result.GetOrdinal("Name")));
+        }
+
         private Client ReadClientFromDb()
         {
             using (SqlConnection connection = new SqlConnection(connectionString))
@@ -162,6 +334,45 @@ namespace Orm.Tests
             StringAssert.EndsWith(" II", clientInDb.Name); 
         }
 
+        [Test]
+        public void UpdateShouldOnlyWriteChangedColumns()
+        {
+            int clientId = InsertClient();
+            Client client = sut.ClientMapper.GetById(clientId);
+            client.Name += " II";
+            ExecuteOnDb("UPDATE Clients SET Address = 'Changed elsewhere' WHERE Id = " + clientId);
+            sut.SaveChanges();
+            Client clientInDb = ReadClientFromDb();
+            StringAssert.EndsWith(" II", clientInDb.Name);
+            Assert.AreEqual("Changed elsewhere", clientInDb.Address);
+        }
+
+        [Test]
+        public void UnchangedValuesShouldNotBeWritten()
+        {
+            int clientId = InsertClient();
+            Client client = sut.ClientMapper.GetById(clientId);
+            client.Name = client.Name;
+            ExecuteOnDb("UPDATE Clients SET Name = 'Changed elsewhere' WHERE Id = " + clientId);
+            sut.SaveChanges();
+            Assert.AreEqual("Changed elsewhere", ReadClientFromDb().Name);
+        }
+
+        [Test]
+        public void UpdateOfStaleVersionShouldFailAndNameTheClient()
+        {
+            int clientId = InsertClient();
+            MappingConfiguration configuration = new MappingConfiguration(connectionString);
+            configuration.AddVersionColumn("Clients", "Version");
+            MappingContext versioned = new MappingContext(configuration) { BatchSize = 10 };
+            Client client = versioned.ClientMapper.GetById(clientId);
+            client.Name += " II";
+            ExecuteOnDb("UPDATE Clients SET Name = 'Changed elsewhere', Version = Version + 1 WHERE Id = " + clientId);
+            OptimisticConcurrencyException error = Assert.Throws<OptimisticConcurrencyException>(() => versioned.SaveChanges());
+            Assert.AreSame(client, error.Entities.Single());
+            Assert.AreEqual("Changed elsewhere", ReadClientFromDb().Name);
+        }
+
         [Test]
         public void ShouldRemoveFromDbbWhenSaveDeleted()
         {
@@ -183,6 +394,15 @@ namespace Orm.Tests
             return insertedId;
         }
 
+        private void ExecuteOnDb(string sql)
+        {
+            using (SqlConnection connection = new SqlConnection(connectionString))
+            {
+                connection.Open();
+                new SqlCommand(sql, connection).ExecuteNonQuery();
+            }
+        }
+
         private int GetClientsCount()
         {
             using (SqlConnection connection = new SqlConnection(connectionString))
@@ -0,0 +1,305 @@
+﻿using System.Collections.Generic;
+using System.Configuration;
+using System.Data;
+using System.Data.SqlClient;
+using System.Linq;
+using NUnit.Framework;
+using OrmExample.Entities;
+using OrmExample.Mapping;
+
+namespace Orm.Tests
+{
+    [TestFixture]
+    public class ClientOffersTests
+    {
+        private const string ConnectionStringName = "testConnectionString";
+        // same as scripts/addClientsVersion.sql
+        private const string AddVersionColumn = "IF COL_LENGTH('dbo.Clients', 'Version') IS NULL " +
+            "ALTER TABLE [dbo].[Clients] ADD [Version] INT NOT NULL CONSTRAINT [DF_dbo.Clients_Version] DEFAULT 0";
+        private MappingContext mappingContext;
+        private string connectionString;
+
+        [TestFixtureSetUp]
+        public void TestsSetup()
+        {
+            connectionString = ConfigurationManager.ConnectionStrings[ConnectionStringName].ConnectionString;
+            Execute(AddVersionColumn);
+            CleanDataInTables();
+        }
+
+        [SetUp]
+        public void Setup()
+        {
+            mappingContext = new MappingContext(ConnectionStringName);
+        }
+
+        [TearDown]
+        public void Cleanup()
+        {
+            CleanDataInTables();
+        }
+
+        private void CleanDataInTables()
+        {
+            Execute("DELETE FROM ClientOffers; DELETE FROM Discounts; DELETE FROM Products; DELETE FROM Clients");
+        }
+
+        [TestCase(AssociationLoadMode.Joined)]
+        [TestCase(AssociationLoadMode.Separate)]
+        public void OffersShouldBeLoadedForAllClients(AssociationLoadMode mode)
+        {
+            Execute("INSERT INTO Products (Name, Price) VALUES ('Oil', 89.0);" +
+                    "INSERT INTO Discounts (Product_Id) SELECT Id FROM Products;" +
+                    "INSERT INTO Discounts (Product_Id) SELECT Id FROM Products;" +
+                    "INSERT INTO Clients (Name, Address) VALUES ('John Doe', 'Rynek 1'), ('Jane Doe', 'Rynek 2');" +
+                    "INSERT INTO ClientOffers (Client_Id, Discount_Id) SELECT c.Id, d.Id FROM Clients c CROSS JOIN Discounts d WHERE c.Name = 'John Doe';" +
+                    "INSERT INTO ClientOffers (Client_Id, Discount_Id) SELECT c.Id, MIN(d.Id) FROM Clients c CROSS JOIN Discounts d WHERE c.Name = 'Jane Doe' GROUP BY c.Id");
+            Client[] clients = mappingContext.ClientMapper.GetAll().OrderBy(c => c.Name).ToArray();
+
+            mappingContext.LoadOffers(clients, mode);
+
+            Client jane = clients[0];
+            Client john = clients[1];
+            Assert.AreEqual(1, jane.Offers.Count);
+            Assert.AreEqual(2, john.Offers.Count);
+            Assert.IsTrue(john.Offers.Any(offer => ReferenceEquals(offer, jane.Offers.Single())));
+            Assert.AreEqual("Oil", john.Offers.First().Product.Name);
+        }
+
+        [Test]
+        public void SeparateLoadShouldFetchProductsOfAllOffersInOneQuery()
+        {
+            Execute("INSERT INTO Products (Name, Price) VALUES ('Oil', 89.0), ('Gas', 45.0);" +
+                    "INSERT INTO Discounts (Product_Id) SELECT Id FROM Products;" +
+                    "INSERT INTO Clients (Name, Address) VALUES ('John Doe', 'Rynek 1');" +
+                    "INSERT INTO ClientOffers (Client_Id, Discount_Id) SELECT c.Id, d.Id FROM Clients c CROSS JOIN Discounts d");
+            PersistenceMetrics metrics = new PersistenceMetrics();
+            MappingContext context = new MappingContext(new MappingConfiguration(connectionString) { PersistenceListener = metrics });
+            Client client = context.ClientMapper.GetAll().Single();
+
+            context.LoadOffers(new[] { client }, AssociationLoadMode.Separate);
+
+            CollectionAssert.AreEquivalent(new[] { "Oil", "Gas" }, client.Offers.Select(offer => offer.Product.Name));
+            // clients, link rows, discounts and their products
+            Assert.AreEqual(4, metrics.GetStatements().Sum(statement => statement.Count));
+        }
+
+        [Test]
+        public void PrefetchedOffersShouldBeReadWithOneQueryForAllClients()
+        {
+            Execute("INSERT INTO Products (Name, Price) VALUES ('Oil', 89.0);" +
+                    "INSERT INTO Discounts (Product_Id) SELECT Id FROM Products;" +
+                    "INSERT INTO Clients (Name, Address) VALUES ('John Doe', 'Rynek 1'), ('Jane Doe', 'Rynek 2'), ('Jim Doe', 'Rynek 3');" +
+                    "INSERT INTO ClientOffers (Client_Id, Discount_Id) SELECT c.Id, d.Id FROM Clients c CROSS JOIN Discounts d");
+            PersistenceMetrics metrics = new PersistenceMetrics();
+            MappingConfiguration configuration = new MappingConfiguration(connectionString)
+                {
+                    PersistenceListener = metrics,
+                    PrefetchLazyAssociations = true
+                };
+            MappingContext context = new MappingContext(configuration);
+
+            Client[] clients = context.ClientMapper.GetAll().ToArray();
+
+            Assert.IsTrue(clients.All(client => client.Offers.Count == 1));
+            Assert.AreEqual(1, metrics.GetStatements().Where(statement => statement.TableName == "ClientOffers").Sum(statement => statement.Count));
+        }
+
+        [Test]
+        public void LazyOffersReadClientByClientShouldBeReportedAsRippleLoad()
+        {
+            Execute("INSERT INTO Products (Name, Price) VALUES ('Oil', 89.0);" +
+                    "INSERT INTO Discounts (Product_Id) SELECT Id FROM Products;" +
+                    "INSERT INTO Clients (Name, Address) VALUES ('John Doe', 'Rynek 1'), ('Jane Doe', 'Rynek 2'), ('Jim Doe', 'Rynek 3');" +
+                    "INSERT INTO ClientOffers (Client_Id, Discount_Id) SELECT c.Id, d.Id FROM Clients c CROSS JOIN Discounts d");
+            PersistenceMetrics metrics = new PersistenceMetrics { RippleLoadThreshold = 3 };
+            MappingContext context = new MappingContext(new MappingConfiguration(connectionString) { PersistenceListener = metrics });
+
+            foreach (Client client in context.ClientMapper.GetAll().ToArray())
+            {
+                Assert.AreEqual(1, client.Offers.Count);
+            }
+
+            Assert.AreEqual("ClientOffers", metrics.GetRippleLoads().Single().TableName);
+        }
+
+        [Test]
+        public void LoadingTwiceShouldNotDuplicateOffers()
+        {
+            Execute("INSERT INTO Products (Name, Price) VALUES ('Oil', 89.0);" +
+                    "INSERT INTO Discounts (Product_Id) SELECT Id FROM Products;" +
+                    "INSERT INTO Clients (Name, Address) VALUES ('John Doe', 'Rynek 1');" +
+                    "INSERT INTO ClientOffers (Client_Id, Discount_Id) SELECT c.Id, d.Id FROM Clients c CROSS JOIN Discounts d");
+            Client client = mappingContext.ClientMapper.GetAll().Single();
+
+            mappingContext.LoadOffers(new[] { client, client }, AssociationLoadMode.Joined);
+            mappingContext.LoadOffers(new[] { client }, AssociationLoadMode.Separate);
+
+            Assert.AreEqual(1, client.Offers.Count);
+        }
+
+        [TestCase(0)]
+        [TestCase(10)]
+        public void SaveShouldWriteOnlyAddedAndRemovedOffers(int batchSize)
+        {
+            Execute("INSERT INTO Products (Name, Price) VALUES ('Oil', 89.0);" +
+                    "INSERT INTO Discounts (Product_Id) SELECT p.Id FROM Products p CROSS JOIN (VALUES (1), (2), (3)) n(i);" +
+                    "INSERT INTO Clients (Name, Address) VALUES ('John Doe', 'Rynek 1');" +
+                    "INSERT INTO ClientOffers (Client_Id, Discount_Id) SELECT TOP 2 c.Id, d.Id FROM Clients c CROSS JOIN Discounts d ORDER BY d.Id");
+            Discount[] discounts = mappingContext.DiscountsMapper.GetAll().OrderBy(d => d.Id).ToArray();
+            Client client = mappingContext.ClientMapper.GetAll().Single();
+            mappingContext.LoadOffers(new[] { client }, AssociationLoadMode.Separate);
+            // written behind the mapper's back, an unchanged collection must not put it back
+            Execute("DELETE FROM ClientOffers WHERE Discount_Id = " + discounts[1].Id);
+
+            client.Offers.Remove(discounts[0]);
+            client.Offer(discounts[2]);
+            mappingContext.BatchSize = batchSize;
+            mappingContext.SaveChanges();
+
+            CollectionAssert.AreEquivalent(new[] { discounts[2].Id }, GetOfferIds(client.Id));
+        }
+
+        [TestCase(false)]
+        [TestCase(true)]
+        public void UpdateRolledBackByALaterBatchShouldBeWrittenOnRetry(bool versioned)
+        {
+            if (versioned)
+            {
+                MappingConfiguration configuration = new MappingConfiguration(connectionString);
+                configuration.AddVersionColumn("Clients", "Version");
+                mappingContext = new MappingContext(configuration);
+            }
+            Execute("INSERT INTO Clients (Name, Address) VALUES ('John Doe', 'Rynek 1')");
+            Client client = mappingContext.ClientMapper.GetAll().Single();
+            mappingContext.LoadOffers(new[] { client }, AssociationLoadMode.Separate);
+            client.Name = "Jack Daniels";
+            // no such discount, the link insert after the client update fails the whole transaction
+            Discount missing = new Discount { Id = -1 };
+            client.Offer(missing);
+            mappingContext.BatchSize = 10;
+            Assert.Throws<BatchException>(() => mappingContext.SaveChanges());
+
+            client.Offers.Remove(missing);
+            // the version is bumped only once the update commits, the retry must not see a stale one
+            mappingContext.SaveChanges();
+
+            Assert.AreEqual("Jack Daniels", GetClientName(client.Id));
+        }
+
+        [Test]
+        public void LinkRolledBackByALaterBatchShouldBeWrittenOnRetry()
+        {
+            Execute("INSERT INTO Products (Name, Price) VALUES ('Oil', 89.0);" +
+                    "INSERT INTO Discounts (Product_Id) SELECT Id FROM Products;" +
+                    "INSERT INTO Clients (Name, Address) VALUES ('John Doe', 'Rynek 1')");
+            Discount discount = mappingContext.DiscountsMapper.GetAll().Single();
+            Client client = mappingContext.ClientMapper.GetAll().Single();
+            mappingContext.LoadOffers(new[] { client }, AssociationLoadMode.Separate);
+            client.Offer(discount);
+            Discount missing = new Discount { Id = -1 };
+            client.Offer(missing);
+            // one link per batch, the valid one has run by the time the missing one fails
+            mappingContext.BatchSize = 1;
+            Assert.Throws<BatchException>(() => mappingContext.SaveChanges());
+
+            client.Offers.Remove(missing);
+            mappingContext.SaveChanges();
+
+            CollectionAssert.AreEquivalent(new[] { discount.Id }, GetOfferIds(client.Id));
+        }
+
+        [TestCase(0)]
+        [TestCase(10)]
+        public void ReplacedOffersShouldBeRewrittenWhenNeverLoaded(int batchSize)
+        {
+            Execute("INSERT INTO Products (Name, Price) VALUES ('Oil', 89.0);" +
+                    "INSERT INTO Discounts (Product_Id) SELECT p.Id FROM Products p CROSS JOIN (VALUES (1), (2)) n(i);" +
+                    "INSERT INTO Clients (Name, Address) VALUES ('John Doe', 'Rynek 1');" +
+                    "INSERT INTO ClientOffers (Client_Id, Discount_Id) SELECT TOP 1 c.Id, d.Id FROM Clients c CROSS JOIN Discounts d ORDER BY d.Id");
+            Discount[] discounts = mappingContext.DiscountsMapper.GetAll().OrderBy(d => d.Id).ToArray();
+            Client client = mappingContext.ClientMapper.GetAll().Single();
+
+            client.Offers = new List<Discount> { discounts[1] };
+            mappingContext.BatchSize = batchSize;
+            mappingContext.SaveChanges();
+
+            CollectionAssert.AreEquivalent(new[] { discounts[1].Id }, GetOfferIds(client.Id));
+        }
+
+        [Test]
+        public void NewClientShouldBeSavedWithItsOffers()
+        {
+            Execute("INSERT INTO Products (Name, Price) VALUES ('Oil', 89.0);" +
+                    "INSERT INTO Discounts (Product_Id) SELECT Id FROM Products");
+            Discount discount = mappingContext.DiscountsMapper.GetAll().Single();
+            Client client = new Client { Name = "John Doe", Address = "Rynek 1" };
+            client.Offer(discount);
+            mappingContext.ClientMapper.Insert(client);
+            mappingContext.BatchSize = 10;
+
+            mappingContext.SaveChanges();
+            mappingContext.SaveChanges();
+
+            CollectionAssert.AreEqual(new[] { discount.Id }, GetOfferIds(client.Id));
+        }
+
+        [Test]
+        public void ClientInsertedByARolledBackCommitShouldBeInsertedAgainOnRetry()
+        {
+            Execute("INSERT INTO Products (Name, Price) VALUES ('Oil', 89.0);" +
+                    "INSERT INTO Discounts (Product_Id) SELECT Id FROM Products");
+            Discount discount = mappingContext.DiscountsMapper.GetAll().Single();
+            Client client = new Client { Name = "John Doe", Address = "Rynek 1" };
+            client.Offer(discount);
+            Discount missing = new Discount { Id = -1 };
+            client.Offer(missing);
+            mappingContext.ClientMapper.Insert(client);
+            mappingContext.BatchSize = 10;
+            Assert.Throws<BatchException>(() => mappingContext.SaveChanges());
+            Assert.AreEqual(0, client.Id);
+
+            client.Offers.Remove(missing);
+            mappingContext.SaveChanges();
+
+            Assert.AreEqual("John Doe", GetClientName(client.Id));
+            CollectionAssert.AreEqual(new[] { discount.Id }, GetOfferIds(client.Id));
+            Assert.AreSame(client, mappingContext.ClientMapper.GetById(client.Id));
+        }
+
+        private string GetClientName(int clientId)
+        {
+            using (SqlConnection connection = new SqlConnection(connectionString))
+            {
+                connection.Open();
+                return (string)new SqlCommand("SELECT Name FROM Clients WHERE Id = " + clientId, connection).ExecuteScalar();
+            }
+        }
+
+        private int[] GetOfferIds(int clientId)
+        {
+            using (SqlConnection connection = new SqlConnection(connectionString))
+            {
+                connection.Open();
+                SqlCommand command = new SqlCommand("SELECT Discount_Id FROM ClientOffers WHERE Client_Id = " + clientId, connection);
+                using (SqlDataReader reader = command.ExecuteReader())
+                {
+                    return reader.Cast<IDataRecord>().Select(record => record.GetInt32(0)).ToArray();
+                }
+            }
+        }
+
+        private void Execute(string sql)
+        {
+            using (SqlConnection connection = new SqlConnection(connectionString))
+            {
+                connection.Open();
+                using (SqlCommand command = new SqlCommand(sql, connection))
+                {
+                    command.CommandTimeout = 0;
+                    command.ExecuteNonQuery();
+                }
+            }
+        }
+    }
+}
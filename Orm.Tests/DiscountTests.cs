@@ -1,5 +1,6 @@
 ﻿using System.Configuration;
 using System.Data.SqlClient;
+using System.Linq;
 using NUnit.Framework;
 using OrmExample.Entities;
 using OrmExample.Mapping;
@@ -106,5 +107,25 @@ namespace Orm.Tests
             Discount sut = new MappingContext(ConnectionStringName).DiscountsMapper.GetById(idToGet);
             Assert.AreEqual(discountedProduct.Id, sut.Product.Id);
         }
+
+        [Test]
+        public void FetchedProductsShouldBeMappedFromTheDiscountQuery()
+        {
+            Product oil = new Product { Name = "Oil", Price = 89.0m };
+            mappingContext.ProductMapper.Insert(oil);
+            mappingContext.SaveChanges();
+            mappingContext.DiscountsMapper.Insert(new Discount { Product = oil });
+            mappingContext.DiscountsMapper.Insert(new Discount { Product = oil });
+            mappingContext.SaveChanges();
+
+            PersistenceMetrics metrics = new PersistenceMetrics();
+            MappingContext context = new MappingContext(new MappingConfiguration(connectionString) { PersistenceListener = metrics });
+            Discount[] discounts = context.DiscountsMapper.FindMany(new StatementSource().Fetch("Product_Id")).ToArray();
+
+            Assert.AreEqual(2, discounts.Length);
+            Assert.AreEqual("Oil", discounts[0].Product.Name);
+            Assert.AreSame(discounts[0].Product, discounts[1].Product);
+            Assert.AreEqual(1, metrics.GetStatements().Sum(statement => statement.Count));
+        }
     }
 }
@@ -0,0 +1,121 @@
+﻿using System;
+using System.Configuration;
+using System.Data.SqlClient;
+using System.Linq;
+using System.Threading.Tasks;
+using NUnit.Framework;
+using OrmExample.Entities;
+using OrmExample.Mapping;
+
+namespace Orm.Tests
+{
+    [TestFixture]
+    public class GroupCommitterTests
+    {
+        private const string ConnectionStringName = "testConnectionString";
+        private string connectionString;
+
+        [TestFixtureSetUp]
+        public void TestsSetup()
+        {
+            connectionString = ConfigurationManager.ConnectionStrings[ConnectionStringName].ConnectionString;
+            CleanDataInTables();
+        }
+
+        [TearDown]
+        public void Cleanup()
+        {
+            CleanDataInTables();
+        }
+
+        [Test]
+        public void ConcurrentCommitsShouldAllBeWritten()
+        {
+            GroupCommitter committer = new GroupCommitter(new DirectConnectionProvider(connectionString), 50)
+                {
+                    Window = TimeSpan.FromMilliseconds(20)
+                };
+            MappingConfiguration configuration = new MappingConfiguration(connectionString) { GroupCommitter = committer };
+
+            Client[] clients = Enumerable.Range(0, 20).Select(i => InsertInOwnUnit(configuration)).ToArray().Select(t => t.Result).ToArray();
+
+            Assert.AreEqual(20, GetCount("Clients"));
+            Assert.IsTrue(clients.All(c => c.Id != 0));
+            Assert.AreEqual(20, committer.CommittedUnits);
+            Assert.Less(committer.Groups, 20);
+        }
+
+        [Test]
+        public void FailingUnitShouldNotFailTheRestOfItsGroup()
+        {
+            GroupCommitter committer = new GroupCommitter(new DirectConnectionProvider(connectionString), 50)
+                {
+                    Window = TimeSpan.FromMilliseconds(50),
+                    MaxGroupSize = 3
+                };
+            MappingConfiguration configuration = new MappingConfiguration(connectionString) { GroupCommitter = committer };
+
+            Task<Client> first = InsertInOwnUnit(configuration);
+            Task failing = Task.Run(() =>
+                {
+                    using (UnitOfWork.BeginScope())
+                    {
+                        MappingContext context = new MappingContext(configuration);
+                        // no such product, the foreign key rejects the row
+                        UnitOfWork.Current.RegisterNew(new Discount { Product = new Product { Id = -1 } });
+                        context.SaveChanges();
+                    }
+                });
+            Task<Client> second = InsertInOwnUnit(configuration);
+
+            AggregateException error = Assert.Throws<AggregateException>(() => failing.Wait());
+            Assert.IsInstanceOf<BatchException>(error.InnerException);
+            Assert.AreNotEqual(0, first.Result.Id);
+            Assert.AreNotEqual(0, second.Result.Id);
+            Assert.AreEqual(2, GetCount("Clients"));
+            Assert.AreEqual(0, GetCount("Discounts"));
+            Assert.AreEqual(1, committer.FailedUnits);
+        }
+
+        [Test]
+        public void EmptyGroupsShouldBeRejected()
+        {
+            GroupCommitter committer = new GroupCommitter(new DirectConnectionProvider(connectionString), 50);
+
+            Assert.Throws<ArgumentOutOfRangeException>(() => committer.MaxGroupSize = 0);
+        }
+
+        private static Task<Client> InsertInOwnUnit(MappingConfiguration configuration)
+        {
+            return Task.Run(() =>
+                {
+                    using (UnitOfWork.BeginScope())
+                    {
+                        MappingContext context = new MappingContext(configuration);
+                        Client client = new Client { Name = "John Doe", Address = "Czerwone Maki 84 Krakow" };
+                        context.ClientMapper.Insert(client);
+                        context.SaveChanges();
+                        return client;
+                    }
+                });
+        }
+
+        private int GetCount(string table)
+        {
+            using (SqlConnection connection = new SqlConnection(connectionString))
+            {
+                connection.Open();
+                return (int)new SqlCommand("SELECT COUNT(*) FROM " + table, connection).ExecuteScalar();
+            }
+        }
+
+        private void CleanDataInTables()
+        {
+            using (SqlConnection connection = new SqlConnection(connectionString))
+            {
+                connection.Open();
+                new SqlCommand("DELETE FROM ClientOffers; DELETE FROM Discounts; DELETE FROM Clients", connection).ExecuteNonQuery();
+            }
+        }
+    }
+}
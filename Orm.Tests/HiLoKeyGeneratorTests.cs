@@ -0,0 +1,145 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Configuration;
+using System.Data.SqlClient;
+using System.Linq;
+using System.Threading;
+using System.Threading.Tasks;
+using NUnit.Framework;
+using OrmExample.Mapping;
+
+namespace Orm.Tests
+{
+    [TestFixture]
+    public class HiLoKeyGeneratorTests
+    {
+        [Test]
+        public void KeysShouldComeFromReservedBlocks()
+        {
+            InMemoryHiLoKeyGenerator sut = new InMemoryHiLoKeyGenerator(10);
+            int[] keys = Enumerable.Range(0, 25).Select(i => sut.NextKey("Clients")).ToArray();
+            CollectionAssert.AreEqual(Enumerable.Range(1, 25), keys);
+            Assert.AreEqual(3, sut.Reservations);
+        }
+
+        [Test]
+        public void TablesShouldHaveSeparateBlocks()
+        {
+            InMemoryHiLoKeyGenerator sut = new InMemoryHiLoKeyGenerator(10);
+            sut.NextKey("Clients");
+            Assert.AreEqual(1, sut.NextKey("Products"));
+            Assert.AreEqual(2, sut.Reservations);
+        }
+
+        [Test]
+        public void ConcurrentCallersShouldGetDistinctKeys()
+        {
+            InMemoryHiLoKeyGenerator sut = new InMemoryHiLoKeyGenerator(7);
+            int[][] keys = Enumerable.Range(0, 4)
+                                     .Select(t => Task.Run(() => Enumerable.Range(0, 1000).Select(i => sut.NextKey("Clients")).ToArray()))
+                                     .ToArray()
+                                     .Select(task => task.Result)
+                                     .ToArray();
+            Assert.AreEqual(4000, keys.SelectMany(k => k).Distinct().Count());
+        }
+
+        [Test]
+        public void KeysPastTheIntRangeShouldNotBeHandedOut()
+        {
+            InMemoryHiLoKeyGenerator sut = new InMemoryHiLoKeyGenerator(10);
+            sut.StartAt("Clients", int.MaxValue / 10);
+            int[] keys = Enumerable.Range(0, 7).Select(i => sut.NextKey("Clients")).ToArray();
+            CollectionAssert.AreEqual(Enumerable.Range(int.MaxValue - 6, 7), keys);
+            Assert.Throws<InvalidOperationException>(() => sut.NextKey("Clients"));
+        }
+
+        [Test]
+        public void RefillOfOneTableShouldNotHoldUpOthers()
+        {
+            InMemoryHiLoKeyGenerator sut = new InMemoryHiLoKeyGenerator(10);
+            sut.HoldReservations("Clients");
+            Task<int> held = Task.Run(() => sut.NextKey("Clients"));
+            Assert.IsTrue(sut.Reserving.Wait(TimeSpan.FromSeconds(5)));
+
+            Assert.IsTrue(Task.Run(() => sut.NextKey("Products")).Wait(TimeSpan.FromSeconds(5)));
+            sut.Release.Set();
+            Assert.AreEqual(1, held.Result);
+        }
+
+        [Test]
+        public void ConcurrentFirstReservationsShouldNotFailOnTheKeysTable()
+        {
+            const string TableName = "HiLoFirstReservation";
+            string connectionString = ConfigurationManager.ConnectionStrings["testConnectionString"].ConnectionString;
+            ExecuteOnDb(connectionString, "DELETE FROM Keys WHERE TableName = '" + TableName + "'");
+            try
+            {
+                // separate generators, each of them reserves its first block from the database
+                int[] keys = Enumerable.Range(0, 8)
+                                       .Select(t => new HiLoKeyGenerator(new DirectConnectionProvider(connectionString), 10))
+                                       .ToArray()
+                                       .Select(generator => Task.Run(() => generator.NextKey(TableName)))
+                                       .ToArray()
+                                       .Select(task => task.Result)
+                                       .ToArray();
+                Assert.AreEqual(8, keys.Distinct().Count());
+            }
+            finally
+            {
+                ExecuteOnDb(connectionString, "DELETE FROM Keys WHERE TableName = '" + TableName + "'");
+            }
+        }
+
+        private static void ExecuteOnDb(string connectionString, string sql)
+        {
+            using (SqlConnection connection = new SqlConnection(connectionString))
+            {
+                connection.Open();
+                new SqlCommand(sql, connection).ExecuteNonQuery();
+            }
+        }
+
+        private class InMemoryHiLoKeyGenerator : HiLoKeyGenerator
+        {
+            private readonly Dictionary<string, int> nextHi = new Dictionary<string, int>();
+            private string heldTable;
+
+            public InMemoryHiLoKeyGenerator(int blockSize)
+                : base(null, blockSize)
+            {
+                Reserving = new ManualResetEventSlim();
+                Release = new ManualResetEventSlim();
+            }
+
+            // set once a reservation for the held table has started, it then waits for Release
+            public ManualResetEventSlim Reserving { get; private set; }
+            public ManualResetEventSlim Release { get; private set; }
+
+            public void StartAt(string tableName, int hi)
+            {
+                nextHi[tableName] = hi;
+            }
+
+            public void HoldReservations(string tableName)
+            {
+                heldTable = tableName;
+            }
+
+            protected override int ReserveHi(string tableName)
+            {
+                if (tableName == heldTable)
+                {
+                    Reserving.Set();
+                    Release.Wait();
+                }
+                lock (nextHi)
+                {
+                    int hi;
+                    nextHi.TryGetValue(tableName, out hi);
+                    nextHi[tableName] = hi + 1;
+                    return hi;
+                }
+            }
+        }
+    }
+}
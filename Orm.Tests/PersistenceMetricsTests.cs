@@ -0,0 +1,92 @@
+﻿using System;
+using System.Linq;
+using NUnit.Framework;
+using OrmExample.Mapping;
+
+namespace Orm.Tests
+{
+    [TestFixture]
+    public class PersistenceMetricsTests
+    {
+        private const string QueryById = "SELECT Id, Name FROM Clients WHERE Id = @Id";
+        private PersistenceMetrics sut;
+
+        [SetUp]
+        public void Setup()
+        {
+            sut = new PersistenceMetrics { RippleLoadThreshold = 3 };
+        }
+
+        [Test]
+        public void SameStatementWithManyKeysShouldBeReportedOnce()
+        {
+            int reported = 0;
+            sut.RippleLoadDetected += rippleLoad => reported++;
+            foreach (int id in new[] { 1, 1, 2, 3, 4, 5 })
+            {
+                sut.StatementExecuted("Clients", QueryById, id, TimeSpan.FromMilliseconds(1), 1);
+            }
+            Assert.AreEqual(1, reported);
+            RippleLoad detected = sut.GetRippleLoads().Single();
+            Assert.AreEqual(QueryById, detected.Sql);
+            Assert.AreEqual(3, detected.DistinctKeys);
+        }
+
+        [Test]
+        public void CommitShouldStartNewDetection()
+        {
+            sut.StatementExecuted("Clients", QueryById, 1, TimeSpan.Zero, 1);
+            sut.StatementExecuted("Clients", QueryById, 2, TimeSpan.Zero, 1);
+            sut.Committed(UnitOfWork.Current, 0, TimeSpan.Zero);
+            sut.StatementExecuted("Clients", QueryById, 3, TimeSpan.Zero, 1);
+            CollectionAssert.IsEmpty(sut.GetRippleLoads());
+        }
+
+        [Test]
+        public void StatementWithoutKeyShouldStartNewDetectionForItsTable()
+        {
+            sut.StatementExecuted("Clients", QueryById, 1, TimeSpan.Zero, 1);
+            sut.StatementExecuted("Clients", QueryById, 2, TimeSpan.Zero, 1);
+            sut.StatementExecuted("Clients", "SELECT Id, Name FROM Clients", null, TimeSpan.Zero, 2);
+            sut.StatementExecuted("Clients", QueryById, 3, TimeSpan.Zero, 1);
+            CollectionAssert.IsEmpty(sut.GetRippleLoads());
+        }
+
+        [Test]
+        public void LazyLoadsOfManyOwnersShouldBeReportedOnce()
+        {
+            const string targetIdsQuery = "SELECT Discount_Id FROM ClientOffers WHERE Client_Id = @Owner";
+            foreach (int clientId in new[] { 1, 2, 3, 4 })
+            {
+                // the link rows of one owner, then its targets in one IN query
+                sut.StatementExecuted("ClientOffers", targetIdsQuery, clientId, TimeSpan.Zero, 2);
+                sut.StatementExecuted("Discounts", "SELECT Id, Product_Id FROM Discounts WHERE Id IN (@p0, @p1)", null, TimeSpan.Zero, 2);
+            }
+            RippleLoad detected = sut.GetRippleLoads().Single();
+            Assert.AreEqual(targetIdsQuery, detected.Sql);
+        }
+
+        [Test]
+        public void StatementsShouldBeCountedIntoHistogram()
+        {
+            sut.StatementExecuted("Clients", QueryById, null, TimeSpan.FromMilliseconds(2), 1);
+            sut.StatementExecuted("Clients", QueryById, null, TimeSpan.FromSeconds(2), 0);
+            StatementStatistics statement = sut.GetStatements().Single();
+            Assert.AreEqual(2, statement.Count);
+            Assert.AreEqual(1, statement.Rows);
+            Assert.AreEqual(TimeSpan.FromSeconds(2), statement.MaxTime);
+            Assert.AreEqual(1, statement.Histogram[Array.IndexOf(StatementStatistics.BucketLimits, 2500)]);
+            Assert.AreEqual(1, statement.Histogram.Last());
+        }
+
+        [Test]
+        public void IdentityMapHitRatioShouldBeTrackedPerTable()
+        {
+            sut.IdentityMapLookup("Clients", true);
+            sut.IdentityMapLookup("Clients", true);
+            sut.IdentityMapLookup("Clients", true);
+            sut.IdentityMapLookup("Clients", false);
+            Assert.AreEqual(0.75, sut.GetTables().Single().IdentityMapHitRatio);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+﻿using System.Collections.Generic;
+using NUnit.Framework;
+using OrmExample.Mapping;
+
+namespace Orm.Tests
+{
+    [TestFixture]
+    public class QueryCacheTests
+    {
+        private const string ByName = "SELECT Id FROM Clients WHERE Name = @Name";
+        private QueryCache sut;
+
+        [SetUp]
+        public void Setup()
+        {
+            sut = new QueryCache(2);
+        }
+
+        private static IDictionary<string, object> Parameters(params object[] namesAndValues)
+        {
+            Dictionary<string, object> parameters = new Dictionary<string, object>();
+            for (int i = 0; i < namesAndValues.Length; i += 2)
+            {
+                parameters.Add((string)namesAndValues[i], namesAndValues[i + 1]);
+            }
+            return parameters;
+        }
+
+        [Test]
+        public void ShouldKeyByParameterValues()
+        {
+            int[] ids;
+            sut.Put(ByName, Parameters("Name", "Doe"), new[] { "Clients" }, new[] { 1, 2 }, sut.Generation);
+            Assert.IsTrue(sut.TryGet(ByName, Parameters("Name", "Doe"), out ids));
+            CollectionAssert.AreEqual(new[] { 1, 2 }, ids);
+            Assert.IsFalse(sut.TryGet(ByName, Parameters("Name", "Smith"), out ids));
+            Assert.AreEqual(0.5, sut.HitRatio);
+        }
+
+        [Test]
+        public void ParameterOrderShouldNotMatter()
+        {
+            int[] ids;
+            sut.Put(ByName, Parameters("A", 1, "B", 2), new[] { "Clients" }, new[] { 1 }, sut.Generation);
+            Assert.IsTrue(sut.TryGet(ByName, Parameters("B", 2, "A", 1), out ids));
+        }
+
+        [Test]
+        public void WriteToReadTableShouldDropOnlyItsQueries()
+        {
+            int[] ids;
+            sut.Put(ByName, Parameters("Name", "Doe"), new[] { "Clients", "ClientOffers" }, new[] { 1 }, sut.Generation);
+            sut.Put("SELECT Id FROM Products", Parameters(), new[] { "Products" }, new[] { 7 }, sut.Generation);
+            sut.InvalidateTable("ClientOffers");
+            Assert.IsFalse(sut.TryGet(ByName, Parameters("Name", "Doe"), out ids));
+            Assert.IsTrue(sut.TryGet("SELECT Id FROM Products", Parameters(), out ids));
+            Assert.AreEqual(1, sut.Invalidations);
+        }
+
+        [Test]
+        public void ResultReadDuringWriteShouldNotBeCached()
+        {
+            int[] ids;
+            long generation = sut.Generation;
+            sut.InvalidateTable("Clients");
+            sut.Put(ByName, Parameters("Name", "Doe"), new[] { "Clients" }, new[] { 1 }, generation);
+            Assert.IsFalse(sut.TryGet(ByName, Parameters("Name", "Doe"), out ids));
+        }
+
+        [Test]
+        public void ShouldEvictLeastRecentlyUsedQuery()
+        {
+            int[] ids;
+            sut.Put(ByName, Parameters("Name", "first"), new[] { "Clients" }, new[] { 1 }, sut.Generation);
+            sut.Put(ByName, Parameters("Name", "second"), new[] { "Clients" }, new[] { 2 }, sut.Generation);
+            sut.TryGet(ByName, Parameters("Name", "first"), out ids);
+            sut.Put(ByName, Parameters("Name", "third"), new[] { "Clients" }, new[] { 3 }, sut.Generation);
+            Assert.IsTrue(sut.TryGet(ByName, Parameters("Name", "first"), out ids));
+            Assert.IsFalse(sut.TryGet(ByName, Parameters("Name", "second"), out ids));
+            Assert.AreEqual(2, sut.Count);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+﻿using System.Configuration;
+using System.Data.SqlClient;
+using System.Linq;
+using NUnit.Framework;
+using OrmExample.Entities;
+using OrmExample.Mapping;
+
+namespace Orm.Tests
+{
+    [TestFixture]
+    public class ResidentTableTests
+    {
+        private const string ConnectionStringName = "testConnectionString";
+        private string connectionString;
+        private ResidentTable products;
+        private MappingContext sut;
+
+        [TestFixtureSetUp]
+        public void TestsSetup()
+        {
+            connectionString = ConfigurationManager.ConnectionStrings[ConnectionStringName].ConnectionString;
+            CleanDataInTables();
+        }
+
+        [SetUp]
+        public void Setup()
+        {
+            Execute("INSERT INTO Products (Name, Price) VALUES ('Kryptonite', 10), ('krill', 2), ('Kiwi', 3)");
+            products = new ResidentTable("Products").WithPrefixIndex("Name");
+            MappingConfiguration configuration = new MappingConfiguration(connectionString);
+            configuration.AddResidentTable(products);
+            sut = new MappingContext(configuration) { BatchSize = 10 };
+        }
+
+        [TearDown]
+        public void Cleanup()
+        {
+            CleanDataInTables();
+        }
+
+        [Test]
+        public void PrefixLookupShouldBeCaseInsensitiveAndAnsweredFromMemory()
+        {
+            Assert.AreEqual(2, sut.ProductMapper.FindMany(StatementSource.ByPrefix("Name", "kr")).Count());
+            Assert.AreEqual(3, products.Count);
+
+            Execute("DELETE FROM Products");
+
+            string[] names = sut.ProductMapper.FindMany(StatementSource.ByPrefix("Name", "KR").OrderBy("Name"))
+                                .Select(p => p.Name)
+                                .ToArray();
+            CollectionAssert.AreEqual(new[] { "krill", "Kryptonite" }, names);
+        }
+
+        [Test]
+        public void CommittedChangesShouldUpdateMemoryCopy()
+        {
+            Product kiwi = sut.ProductMapper.FindMany(StatementSource.ByPrefix("Name", "Kiwi")).Single();
+            kiwi.Name = "Krupnik";
+            sut.SaveChanges();
+            sut.ProductMapper.Insert(new Product { Name = "Kumquat", Price = 4 });
+
+            Assert.AreEqual(3, sut.ProductMapper.FindMany(StatementSource.ByPrefix("Name", "Kr")).Count());
+            Assert.AreEqual(0, sut.ProductMapper.FindMany(StatementSource.ByPrefix("Name", "Ki")).Count());
+            Assert.AreEqual(4, products.Count);
+        }
+
+        private void Execute(string sql)
+        {
+            using (SqlConnection connection = new SqlConnection(connectionString))
+            {
+                connection.Open();
+                new SqlCommand(sql, connection).ExecuteNonQuery();
+            }
+        }
+
+        private void CleanDataInTables()
+        {
+            Execute("DELETE FROM ClientOffers; DELETE FROM Discounts; DELETE FROM Products");
+        }
+    }
+}
@@ -0,0 +1,69 @@
+﻿using System;
+using NUnit.Framework;
+using OrmExample.Mapping;
+
+namespace Orm.Tests
+{
+    [TestFixture]
+    public class SecondLevelCacheTests
+    {
+        private SecondLevelCache sut;
+
+        [SetUp]
+        public void Setup()
+        {
+            sut = new SecondLevelCache(2);
+        }
+
+        private static CachedRow Row(string name)
+        {
+            return new CachedRow(new[] { "Id", "Name" }, new object[] { 1, name });
+        }
+
+        [Test]
+        public void ShouldEvictLeastRecentlyUsedRow()
+        {
+            CachedRow row;
+            sut.Put("Clients", 1, Row("first"), sut.GetGeneration("Clients"));
+            sut.Put("Clients", 2, Row("second"), sut.GetGeneration("Clients"));
+            sut.TryGet("Clients", 1, out row);
+            sut.Put("Clients", 3, Row("third"), sut.GetGeneration("Clients"));
+            Assert.IsTrue(sut.TryGet("Clients", 1, out row));
+            Assert.IsFalse(sut.TryGet("Clients", 2, out row));
+            Assert.AreEqual(2, sut.Count);
+        }
+
+        [Test]
+        public void ShouldNotReturnExpiredRows()
+        {
+            CachedRow row;
+            sut.SetTimeToLive("Products", TimeSpan.Zero);
+            sut.Put("Products", 1, Row("expired"), sut.GetGeneration("Products"));
+            sut.Put("Clients", 1, Row("alive"), sut.GetGeneration("Clients"));
+            Assert.IsFalse(sut.TryGet("Products", 1, out row));
+            Assert.IsTrue(sut.TryGet("Clients", 1, out row));
+            Assert.AreEqual("alive", row["Name"]);
+        }
+
+        [Test]
+        public void InvalidatedRowShouldBeReadAgain()
+        {
+            CachedRow row;
+            sut.Put("Clients", 1, Row("stale"), sut.GetGeneration("Clients"));
+            sut.Invalidate("Clients", 1);
+            Assert.IsFalse(sut.TryGet("Clients", 1, out row));
+            Assert.AreEqual(1, sut.Misses);
+        }
+
+        [Test]
+        public void RowReadDuringWriteShouldNotBeCached()
+        {
+            CachedRow row;
+            long generation = sut.GetGeneration("Clients");
+            sut.Invalidate("Clients", 1);
+            sut.Put("Clients", 1, Row("stale"), generation);
+            Assert.IsFalse(sut.TryGet("Clients", 1, out row));
+            Assert.AreEqual(0, sut.Count);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+﻿using System.Linq;
+using System.Threading;
+using System.Threading.Tasks;
+using NUnit.Framework;
+using OrmExample.Entities;
+using OrmExample.Mapping;
+
+namespace Orm.Tests
+{
+    [TestFixture]
+    public class UnitOfWorkTests
+    {
+        private UnitOfWork sut;
+
+        [SetUp]
+        public void Setup()
+        {
+            sut = new UnitOfWork();
+        }
+
+        [Test]
+        public void DirtyShouldNotOverrideNew()
+        {
+            Client client = new Client();
+            sut.RegisterNew(client);
+            client.Id = 7;
+            sut.RegisterDirty(client);
+            Assert.IsTrue(sut.IsNew(client));
+            Assert.IsFalse(sut.IsDirty(client));
+        }
+
+        [Test]
+        public void RemovedShouldReplaceNew()
+        {
+            Client client = new Client();
+            sut.RegisterNew(client);
+            sut.RegisterRemoved(client);
+            Assert.IsFalse(sut.IsNew(client));
+            Assert.IsTrue(sut.IsRemoved(client));
+        }
+
+        [Test]
+        public void RegistrationShouldSurviveIdChange()
+        {
+            Client client = new Client();
+            sut.RegisterNew(client);
+            client.Id = 42;
+            Assert.IsTrue(sut.IsNew(client));
+        }
+
+        [Test]
+        public void EqualEntitiesShouldBeTrackedSeparately()
+        {
+            Product first = new Product { Id = 5 };
+            Product second = new Product { Id = 5 };
+            sut.RegisterDirty(first);
+            sut.RegisterDirty(second);
+            Assert.IsTrue(sut.IsDirty(first));
+            Assert.IsTrue(sut.IsDirty(second));
+        }
+
+        [Test]
+        public void CurrentShouldExistOnEveryThread()
+        {
+            UnitOfWork other = null;
+            Thread thread = new Thread(() => other = UnitOfWork.Current);
+            thread.Start();
+            thread.Join();
+            Assert.IsNotNull(other);
+            Assert.AreNotSame(UnitOfWork.Current, other);
+        }
+
+        [Test]
+        public void ScopeShouldFlowIntoForkedWork()
+        {
+            UnitOfWork outside = UnitOfWork.Current;
+            using (UnitOfWorkScope scope = UnitOfWork.BeginScope())
+            {
+                Assert.AreSame(scope.UnitOfWork, UnitOfWork.Current);
+                Assert.AreSame(scope.UnitOfWork, Task.Run(() => UnitOfWork.Current).Result);
+            }
+            Assert.AreSame(outside, UnitOfWork.Current);
+        }
+
+        [Test]
+        public void ForkedWorkShouldRegisterIntoScope()
+        {
+            using (UnitOfWorkScope scope = UnitOfWork.BeginScope())
+            {
+                Client[] clients = Enumerable.Range(1, 1000).Select(i => new Client { Id = i }).ToArray();
+                Parallel.ForEach(clients, client => client.Name = "changed");
+                Assert.AreEqual(clients.Length, scope.UnitOfWork.PendingCount);
+                Assert.IsTrue(clients.All(scope.UnitOfWork.IsDirty));
+            }
+        }
+    }
+}
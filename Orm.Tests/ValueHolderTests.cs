@@ -0,0 +1,62 @@
+﻿using System;
+using System.Linq;
+using System.Threading;
+using System.Threading.Tasks;
+using NUnit.Framework;
+using OrmExample.Mapping;
+
+namespace Orm.Tests
+{
+    [TestFixture]
+    public class ValueHolderTests
+    {
+        [Test]
+        public void ConcurrentReadsShouldLoadOnce()
+        {
+            int loads = 0;
+            ValueHolder<string> sut = new ValueHolder<string>(() =>
+                {
+                    Interlocked.Increment(ref loads);
+                    Thread.Sleep(50);
+                    return "loaded";
+                });
+            string[] values = Enumerable.Range(0, 8)
+                                        .Select(i => Task.Run(() => sut.Value))
+                                        .ToArray()
+                                        .Select(task => task.Result)
+                                        .ToArray();
+            Assert.AreEqual(1, loads);
+            Assert.IsTrue(values.All(value => value == "loaded"));
+        }
+
+        [Test]
+        public void NullShouldCountAsLoaded()
+        {
+            int loads = 0;
+            ValueHolder<string> sut = new ValueHolder<string>(() =>
+                {
+                    loads++;
+                    return null;
+                });
+            Assert.IsNull(sut.Value);
+            Assert.IsNull(sut.Value);
+            Assert.AreEqual(1, loads);
+            Assert.IsTrue(sut.IsLoaded);
+        }
+
+        [Test]
+        public void FailedLoadShouldBeRetried()
+        {
+            int loads = 0;
+            ValueHolder<int> sut = new ValueHolder<int>(() =>
+                {
+                    if (++loads == 1)
+                        throw new InvalidOperationException("first load fails");
+                    return 42;
+                });
+            Assert.Throws<InvalidOperationException>(() => { int value = sut.Value; });
+            Assert.IsFalse(sut.IsLoaded);
+            Assert.AreEqual(42, sut.Value);
+        }
+    }
+}
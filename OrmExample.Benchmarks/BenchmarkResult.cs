@@ -0,0 +1,35 @@
+﻿using System;
+using System.Linq;
+
+namespace OrmExample.Benchmarks
+{
+    // nanoseconds and allocated bytes per operation over the measured iterations
+    public class BenchmarkResult
+    {
+        public BenchmarkResult(string name, int size, double[] nanosPerOperation, int gen0Collections, double allocatedBytes)
+        {
+            double[] sorted = nanosPerOperation.OrderBy(nanos => nanos).ToArray();
+            Name = name;
+            Size = size;
+            Iterations = sorted.Length;
+            Mean = sorted.Average();
+            Median = sorted[sorted.Length / 2];
+            Min = sorted[0];
+            Max = sorted[sorted.Length - 1];
+            StdDev = Math.Sqrt(sorted.Sum(nanos => (nanos - Mean) * (nanos - Mean)) / sorted.Length);
+            Gen0Collections = gen0Collections;
+            AllocatedBytes = allocatedBytes;
+        }
+
+        public string Name { get; private set; }
+        public int Size { get; private set; }
+        public int Iterations { get; private set; }
+        public double Mean { get; private set; }
+        public double Median { get; private set; }
+        public double Min { get; private set; }
+        public double Max { get; private set; }
+        public double StdDev { get; private set; }
+        public int Gen0Collections { get; private set; }
+        public double AllocatedBytes { get; private set; }
+    }
+}
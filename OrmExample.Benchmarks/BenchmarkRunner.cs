@@ -0,0 +1,67 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Diagnostics;
+
+namespace OrmExample.Benchmarks
+{
+    // prepare builds fresh state outside the measurement and returns the measured action,
+    // which performs size operations
+    public class BenchmarkRunner
+    {
+        private readonly List<BenchmarkResult> results = new List<BenchmarkResult>();
+        private readonly string filter;
+        private readonly int warmupIterations;
+        private readonly int measuredIterations;
+
+        public BenchmarkRunner(string filter, int warmupIterations, int measuredIterations)
+        {
+            this.filter = filter;
+            this.warmupIterations = warmupIterations;
+            this.measuredIterations = measuredIterations;
+            // allocations are counted per app domain only once monitoring is on, it cannot be turned off again
+            AppDomain.MonitoringIsEnabled = true;
+        }
+
+        public IList<BenchmarkResult> Results
+        {
+            get { return results; }
+        }
+
+        public void Run(string name, int size, Func<Action> prepare)
+        {
+            if (filter != null && name.IndexOf(filter, StringComparison.OrdinalIgnoreCase) < 0)
+                return;
+
+            for (int i = 0; i < warmupIterations; i++)
+            {
+                prepare()();
+            }
+
+            double[] nanosPerOperation = new double[measuredIterations];
+            int gen0Collections = 0;
+            long allocatedBytes = 0;
+            for (int i = 0; i < measuredIterations; i++)
+            {
+                Action action = prepare();
+                GC.Collect();
+                GC.WaitForPendingFinalizers();
+                GC.Collect();
+                int collectionsBefore = GC.CollectionCount(0);
+                long allocatedBefore = AppDomain.CurrentDomain.MonitoringTotalAllocatedMemorySize;
+                Stopwatch stopwatch = Stopwatch.StartNew();
+                action();
+                stopwatch.Stop();
+                allocatedBytes += AppDomain.CurrentDomain.MonitoringTotalAllocatedMemorySize - allocatedBefore;
+                gen0Collections += GC.CollectionCount(0) - collectionsBefore;
+                nanosPerOperation[i] = stopwatch.Elapsed.TotalMilliseconds * 1000000 / size;
+            }
+
+            BenchmarkResult result = new BenchmarkResult(name, size, nanosPerOperation, gen0Collections,
+                                                         (double)allocatedBytes / measuredIterations / size);
+            results.Add(result);
+            Console.WriteLine("{0,-40} {1,8} {2,14:F1} ns/op  (median {3:F1}, +-{4:F1})  {5,10:F1} B/op  {6} gen0",
+                              result.Name, result.Size, result.Mean, result.Median, result.StdDev,
+                              result.AllocatedBytes, result.Gen0Collections);
+        }
+    }
+}
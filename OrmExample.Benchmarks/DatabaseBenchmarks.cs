@@ -0,0 +1,105 @@
+﻿using System;
+using System.Data.SqlClient;
+using System.Linq;
+using OrmExample.Entities;
+using OrmExample.Mapping;
+
+namespace OrmExample.Benchmarks
+{
+    // the same paths against SQL Server, compare with the in-memory suite to separate driver and server time
+    public class DatabaseBenchmarks
+    {
+        private const int OffersPerClient = 20;
+        private readonly BenchmarkRunner runner;
+        private readonly string connectionString;
+
+        public DatabaseBenchmarks(BenchmarkRunner runner, string connectionString)
+        {
+            this.runner = runner;
+            this.connectionString = connectionString;
+        }
+
+        public void RunAll()
+        {
+            foreach (int size in new[] { 100, 1000 })
+            {
+                runner.Run("db.uow.commit.batched", size, () =>
+                    {
+                        Execute("DELETE FROM ClientOffers; DELETE FROM Discounts; DELETE FROM Products");
+                        MappingContext context = CreateContext();
+                        foreach (Product product in Enumerable.Range(0, size).Select(i => new Product { Name = "Product " + i, Price = i }))
+                        {
+                            context.ProductMapper.Insert(product);
+                        }
+                        return context.SaveChanges;
+                    });
+            }
+
+            foreach (int size in new[] { 1000, 10000 })
+            {
+                PrepareClientsWithOffers(size);
+                runner.Run("db.mapper.getAll", size, () =>
+                    {
+                        MappingContext context = CreateContext();
+                        return () => context.ClientMapper.GetAll().ToList();
+                    });
+                runner.Run("db.mapper.project", size, () =>
+                    {
+                        MappingContext context = CreateContext();
+                        return () => context.ClientMapper.Project(new StatementSource(), "Name");
+                    });
+                // what the bulk modes replace
+                runner.Run("db.associations.perClient", size, () =>
+                    {
+                        MappingContext context = CreateContext();
+                        Client[] clients = context.ClientMapper.GetAll().ToArray();
+                        return () =>
+                            {
+                                foreach (Client client in clients)
+                                {
+                                    context.LoadOffers(new[] { client }, AssociationLoadMode.Separate);
+                                }
+                            };
+                    });
+                foreach (AssociationLoadMode mode in new[] { AssociationLoadMode.Joined, AssociationLoadMode.Separate })
+                {
+                    AssociationLoadMode loadMode = mode;
+                    runner.Run("db.associations." + mode.ToString().ToLowerInvariant(), size, () =>
+                        {
+                            MappingContext context = CreateContext();
+                            Client[] clients = context.ClientMapper.GetAll().ToArray();
+                            return () => context.LoadOffers(clients, loadMode);
+                        });
+                }
+            }
+            Execute("DELETE FROM ClientOffers; DELETE FROM Discounts; DELETE FROM Products; DELETE FROM Clients");
+        }
+
+        private MappingContext CreateContext()
+        {
+            return new MappingContext(new MappingConfiguration(connectionString)) { BatchSize = 100 };
+        }
+
+        private void PrepareClientsWithOffers(int clients)
+        {
+            Execute("DELETE FROM ClientOffers; DELETE FROM Discounts; DELETE FROM Products; DELETE FROM Clients;" +
+                    "INSERT INTO Products (Name, Price) VALUES ('Oil', 89.0);" +
+                    "INSERT INTO Discounts (Product_Id) SELECT TOP " + OffersPerClient + " p.Id FROM Products p CROSS JOIN sys.all_objects;" +
+                    "INSERT INTO Clients (Name, Address) SELECT TOP " + clients + " 'Client', 'Rynek' FROM sys.all_objects a CROSS JOIN sys.all_objects b;" +
+                    "INSERT INTO ClientOffers (Client_Id, Discount_Id) SELECT c.Id, d.Id FROM Clients c CROSS JOIN Discounts d");
+        }
+
+        private void Execute(string sql)
+        {
+            using (SqlConnection connection = new SqlConnection(connectionString))
+            {
+                connection.Open();
+                using (SqlCommand command = new SqlCommand(sql, connection))
+                {
+                    command.CommandTimeout = 0;
+                    command.ExecuteNonQuery();
+                }
+            }
+        }
+    }
+}
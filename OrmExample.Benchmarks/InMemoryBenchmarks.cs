@@ -0,0 +1,272 @@
+﻿using System.Collections.Generic;
+using System.Linq;
+using OrmExample.Entities;
+using OrmExample.Mapping;
+
+namespace OrmExample.Benchmarks
+{
+    // mapper, identity map, unit of work and lazy loading cost with CachedRow standing in for the data reader
+    public class InMemoryBenchmarks
+    {
+        private static readonly int[] Sizes = { 1000, 10000, 100000 };
+        private readonly BenchmarkRunner runner;
+
+        public InMemoryBenchmarks(BenchmarkRunner runner)
+        {
+            this.runner = runner;
+        }
+
+        public void RunAll()
+        {
+            foreach (int size in Sizes)
+            {
+                RunMapper(size);
+                RunUnitOfWork(size);
+                RunLazyLoading(size);
+            }
+        }
+
+        private void RunMapper(int size)
+        {
+            List<CachedRow> rows = CreateProductRows(size);
+            runner.Run("mapper.loadRows", size, () =>
+                {
+                    EntityMapper mapper = CreateMapper(null);
+                    return () => mapper.LoadRows(rows);
+                });
+            runner.Run("mapper.loadRows.handWritten", size, () =>
+                {
+                    EntityMapper mapper = CreateMapper(null, new HandWrittenProductMapping());
+                    return () => mapper.LoadRows(rows);
+                });
+            // the identity map check of every read row, as GetAll did it before reading by ordinal and as it does now
+            runner.Run("identityMap.lookup.byName", size, () =>
+                {
+                    Dictionary<int, IEntity> identityMap = CreateIdentityMap(rows);
+                    return () =>
+                        {
+                            foreach (CachedRow row in rows)
+                            {
+                                int id = (int)row["Id"];
+                                IEntity entity;
+                                if (identityMap.ContainsKey(id))
+                                    entity = identityMap[id];
+                            }
+                        };
+                });
+            runner.Run("identityMap.lookup.byOrdinal", size, () =>
+                {
+                    Dictionary<int, IEntity> identityMap = CreateIdentityMap(rows);
+                    int idOrdinal = rows[0].GetOrdinal("Id");
+                    return () =>
+                        {
+                            foreach (CachedRow row in rows)
+                            {
+                                IEntity entity;
+                                identityMap.TryGetValue(row.GetInt32(idOrdinal), out entity);
+                            }
+                        };
+                });
+            runner.Run("mapper.getById.identityMapHit", size, () =>
+                {
+                    EntityMapper mapper = CreateMapper(null);
+                    mapper.LoadRows(rows);
+                    return () => ReadAll(mapper, size);
+                });
+            runner.Run("mapper.getById.secondLevelCacheHit", size, () =>
+                {
+                    SecondLevelCache cache = new SecondLevelCache(size);
+                    foreach (CachedRow row in rows)
+                    {
+                        cache.Put("Products", row.GetInt32(0), row, cache.GetGeneration("Products"));
+                    }
+                    EntityMapper mapper = CreateMapper(cache);
+                    return () => ReadAll(mapper, size);
+                });
+        }
+
+        private void RunUnitOfWork(int size)
+        {
+            runner.Run("uow.registerNew", size, () =>
+                {
+                    Product[] products = CreateProducts(size, 0);
+                    UnitOfWork unitOfWork = new UnitOfWork();
+                    return () =>
+                        {
+                            foreach (Product product in products)
+                            {
+                                unitOfWork.RegisterNew(product);
+                            }
+                        };
+                });
+            runner.Run("uow.registerDirty", size, () =>
+                {
+                    Product[] products = CreateProducts(size, 1);
+                    UnitOfWork unitOfWork = new UnitOfWork();
+                    return () =>
+                        {
+                            foreach (Product product in products)
+                            {
+                                unitOfWork.RegisterDirty(product);
+                            }
+                        };
+                });
+            // registering an object that is already registered, the lookup must not grow with the unit of work
+            runner.Run("uow.registerDirty.again", size, () =>
+                {
+                    Product[] products = CreateProducts(size, 1);
+                    UnitOfWork unitOfWork = new UnitOfWork();
+                    foreach (Product product in products)
+                    {
+                        unitOfWork.RegisterDirty(product);
+                    }
+                    return () =>
+                        {
+                            foreach (Product product in products)
+                            {
+                                unitOfWork.RegisterDirty(product);
+                            }
+                        };
+                });
+            // the lists searched on every registration are quadratic, the largest size would take minutes
+            if (size <= 10000)
+            {
+                runner.Run("uow.registerDirty.lists", size, () =>
+                    {
+                        Product[] products = CreateProducts(size, 1);
+                        ListUnitOfWork unitOfWork = new ListUnitOfWork();
+                        return () =>
+                            {
+                                foreach (Product product in products)
+                                {
+                                    unitOfWork.RegisterDirty(product);
+                                }
+                            };
+                    });
+                runner.Run("uow.registerDirty.again.lists", size, () =>
+                    {
+                        Product[] products = CreateProducts(size, 1);
+                        ListUnitOfWork unitOfWork = new ListUnitOfWork();
+                        foreach (Product product in products)
+                        {
+                            unitOfWork.RegisterDirty(product);
+                        }
+                        return () =>
+                            {
+                                foreach (Product product in products)
+                                {
+                                    unitOfWork.RegisterDirty(product);
+                                }
+                            };
+                    });
+            }
+            runner.Run("uow.registerClean", size, () =>
+                {
+                    Product[] products = CreateProducts(size, 1);
+                    UnitOfWork unitOfWork = new UnitOfWork();
+                    foreach (Product product in products)
+                    {
+                        unitOfWork.RegisterDirty(product);
+                    }
+                    return () =>
+                        {
+                            foreach (Product product in products)
+                            {
+                                unitOfWork.RegisterClean(product);
+                            }
+                        };
+                });
+            runner.Run("uow.commit.nullMapper", size, () =>
+                {
+                    MapperRegistry.RegisterMapper(typeof(Product), new NullEntityMapper(new AttributeMapping<Product>()));
+                    UnitOfWork unitOfWork = new UnitOfWork();
+                    foreach (Product product in CreateProducts(size, 1))
+                    {
+                        unitOfWork.RegisterDirty(product);
+                    }
+                    return unitOfWork.Commit;
+                });
+        }
+
+        private void RunLazyLoading(int size)
+        {
+            runner.Run("valueHolder.firstAccess", size, () =>
+                {
+                    ValueHolder<object>[] holders = Enumerable.Range(0, size)
+                                                              .Select(i => new ValueHolder<object>(() => i))
+                                                              .ToArray();
+                    return () =>
+                        {
+                            foreach (ValueHolder<object> holder in holders)
+                            {
+                                object value = holder.Value;
+                            }
+                        };
+                });
+            runner.Run("virtualList.firstAccess", size, () =>
+                {
+                    VirtualList<int>[] lists = Enumerable.Range(0, size)
+                                                         .Select(i => new VirtualList<int>(new ValueHolder<IList<int>>(() => new List<int> { i })))
+                                                         .ToArray();
+                    return () =>
+                        {
+                            foreach (VirtualList<int> list in lists)
+                            {
+                                int count = list.Count;
+                            }
+                        };
+                });
+        }
+
+        private static EntityMapper CreateMapper(SecondLevelCache cache)
+        {
+            return CreateMapper(cache, new AttributeMapping<Product>());
+        }
+
+        private static EntityMapper CreateMapper(SecondLevelCache cache, IMapping mapping)
+        {
+            MappingConfiguration configuration = new MappingConfiguration(string.Empty)
+                {
+                    ConnectionProvider = new UnavailableConnectionProvider(),
+                    SecondLevelCache = cache
+                };
+            return new EntityMapper(configuration, mapping);
+        }
+
+        private static Dictionary<int, IEntity> CreateIdentityMap(IEnumerable<CachedRow> rows)
+        {
+            return rows.ToDictionary(row => row.GetInt32(0), row => (IEntity)new Product { Id = row.GetInt32(0) });
+        }
+
+        private static void ReadAll(EntityMapper mapper, int size)
+        {
+            for (int id = 1; id <= size; id++)
+            {
+                mapper.GetById(id);
+            }
+        }
+
+        private static List<CachedRow> CreateProductRows(int size)
+        {
+            string[] names = { "Id", "Name", "Price" };
+            return Enumerable.Range(1, size)
+                             .Select(id => new CachedRow(names, new object[] { id, "Product " + id, 10.5m + id }))
+                             .ToList();
+        }
+
+        private static Product[] CreateProducts(int size, int firstId)
+        {
+            Product[] products = Enumerable.Range(0, size)
+                                           .Select(i => new Product { Name = "Product " + i, Price = i })
+                                           .ToArray();
+            if (firstId > 0)
+            {
+                for (int i = 0; i < products.Length; i++)
+                {
+                    products[i].Id = firstId + i;
+                }
+            }
+            return products;
+        }
+    }
+}
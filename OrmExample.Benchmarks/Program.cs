@@ -0,0 +1,36 @@
+﻿using System;
+using System.Configuration;
+
+namespace OrmExample.Benchmarks
+{
+    // OrmExample.Benchmarks [--filter text] [--label commit] [--csv file] [--json file] [--database]
+    class Program
+    {
+        static void Main(string[] args)
+        {
+            string filter = Option(args, "--filter");
+            string label = Option(args, "--label") ?? "local";
+            string csvPath = Option(args, "--csv");
+            string jsonPath = Option(args, "--json");
+
+            BenchmarkRunner runner = new BenchmarkRunner(filter, 3, 10);
+            new InMemoryBenchmarks(runner).RunAll();
+            if (Array.IndexOf(args, "--database") >= 0)
+            {
+                string connectionString = ConfigurationManager.ConnectionStrings["benchmark"].ConnectionString;
+                new DatabaseBenchmarks(runner, connectionString).RunAll();
+            }
+
+            if (csvPath != null)
+                ResultWriter.WriteCsv(csvPath, label, runner.Results);
+            if (jsonPath != null)
+                ResultWriter.WriteJson(jsonPath, label, runner.Results);
+        }
+
+        private static string Option(string[] args, string name)
+        {
+            int index = Array.IndexOf(args, name);
+            return index >= 0 && index + 1 < args.Length ? args[index + 1] : null;
+        }
+    }
+}
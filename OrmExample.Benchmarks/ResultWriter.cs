@@ -0,0 +1,42 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Globalization;
+using System.IO;
+using System.Linq;
+using System.Text;
+
+namespace OrmExample.Benchmarks
+{
+    // label identifies the run (e.g. the commit), so files from two runs can be compared row by row
+    public static class ResultWriter
+    {
+        private const string CsvHeader = "label,name,size,iterations,mean_ns,median_ns,min_ns,max_ns,stddev_ns,gen0,alloc_bytes";
+
+        public static void WriteCsv(string path, string label, IEnumerable<BenchmarkResult> results)
+        {
+            StringBuilder csv = new StringBuilder(CsvHeader).Append('\n');
+            foreach (BenchmarkResult result in results)
+            {
+                csv.AppendFormat(CultureInfo.InvariantCulture, "{0},{1},{2},{3},{4:F1},{5:F1},{6:F1},{7:F1},{8:F1},{9},{10:F1}\n",
+                                 label, result.Name, result.Size, result.Iterations, result.Mean, result.Median,
+                                 result.Min, result.Max, result.StdDev, result.Gen0Collections, result.AllocatedBytes);
+            }
+            File.WriteAllText(path, csv.ToString());
+        }
+
+        public static void WriteJson(string path, string label, IEnumerable<BenchmarkResult> results)
+        {
+            IEnumerable<string> entries = results.Select(result => string.Format(
+                CultureInfo.InvariantCulture,
+                "    {{ \"name\": \"{0}\", \"size\": {1}, \"iterations\": {2}, \"meanNs\": {3:F1}, \"medianNs\": {4:F1}, " +
+                "\"minNs\": {5:F1}, \"maxNs\": {6:F1}, \"stdDevNs\": {7:F1}, \"gen0\": {8}, \"allocBytes\": {9:F1} }}",
+                result.Name, result.Size, result.Iterations, result.Mean, result.Median, result.Min, result.Max,
+                result.StdDev, result.Gen0Collections, result.AllocatedBytes));
+            string json = string.Format(CultureInfo.InvariantCulture,
+                                        "{{\n  \"label\": \"{0}\",\n  \"runtime\": \"{1}\",\n  \"processors\": {2},\n  \"timestamp\": \"{3:O}\",\n  \"results\": [\n{4}\n  ]\n}}\n",
+                                        label, Environment.Version, Environment.ProcessorCount, DateTime.UtcNow,
+                                        string.Join(",\n", entries));
+            File.WriteAllText(path, json);
+        }
+    }
+}
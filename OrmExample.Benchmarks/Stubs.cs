@@ -0,0 +1,107 @@
+﻿using System;
+using System.Collections;
+using System.Collections.Generic;
+using System.Data;
+using System.Data.SqlClient;
+using System.Linq;
+using System.Threading.Tasks;
+using OrmExample.Entities;
+using OrmExample.Mapping;
+
+namespace OrmExample.Benchmarks
+{
+    // in-memory suites must never reach a database, any attempt is a bug in the benchmark
+    internal class UnavailableConnectionProvider : IConnectionProvider
+    {
+        public ConnectionLease Acquire()
+        {
+            throw new InvalidOperationException("in-memory benchmarks run without a database");
+        }
+
+        public void Release(ConnectionLease lease)
+        {
+        }
+    }
+
+    // accepts writes without executing them, leaves only the unit of work cost in commit
+    internal class NullEntityMapper : IEntityMapper
+    {
+        private readonly IMapping mapping;
+
+        public NullEntityMapper(IMapping mapping)
+        {
+            this.mapping = mapping;
+        }
+
+        public IMapping Mapping { get { return mapping; } }
+        public IEntity GetById(int id) { return null; }
+        public Task<IEntity> GetByIdAsync(int id) { return Task.FromResult<IEntity>(null); }
+        public IEnumerable GetAll() { return new ArrayList(); }
+        public IEnumerable GetByIds(IEnumerable<int> ids) { return new ArrayList(); }
+        public IEnumerable FindMany(StatementSource source) { return new ArrayList(); }
+        public Task<IList<IEntity>> FindManyAsync(StatementSource source) { return Task.FromResult<IList<IEntity>>(new List<IEntity>()); }
+        public Page<IEntity> GetPage(StatementSource source, int pageSize, string continuationToken, bool registerInIdentityMap) { return new Page<IEntity>(new List<IEntity>(), null); }
+        public IEnumerable<IEntity> Stream(StatementSource source, bool registerInIdentityMap) { return Enumerable.Empty<IEntity>(); }
+        public ColumnarResult Project(StatementSource source, params string[] columns) { return null; }
+        public IList<IEntity> LoadRows(IList<CachedRow> rows) { return new List<IEntity>(); }
+        public void Insert(IEntity entity) { }
+        public void Update(IEntity entity) { }
+        public void DeleteById(int id) { }
+        public void AddInsert(SqlBatch batch, IEntity entity) { }
+        public void AddUpdate(SqlBatch batch, IEntity entity) { }
+        public void AddDelete(SqlBatch batch, IEntity entity) { }
+        public void LinksLoaded(IAssociationMapping association, int ownerId, IEnumerable<int> targetIds) { }
+        public IList<LinkChange> GetLinkChanges(IEnumerable<IEntity> inserted) { return new List<LinkChange>(); }
+        public void SaveLinks(IEnumerable<LinkChange> changes) { }
+        public void Invalidate(IEntity entity) { }
+    }
+
+    // the registration checks of the list based UnitOfWork that the state table replaced, the baseline
+    // for uow.registerDirty; its asserts are left out as they are in a release build
+    internal class ListUnitOfWork
+    {
+        private readonly List<IEntity> newObjects = new List<IEntity>();
+        private readonly List<IEntity> dirtyObjects = new List<IEntity>();
+
+        public void RegisterDirty(IEntity entity)
+        {
+            if (entity.Id == 0)
+                return;
+            if (dirtyObjects.Contains(entity))
+                return;
+            if (newObjects.Contains(entity))
+                return;
+            dirtyObjects.Add(entity);
+        }
+    }
+
+    // the ProductMapping that AttributeMapping<Product> replaced, the baseline for generated accessors
+    internal class HandWrittenProductMapping : IMapping
+    {
+        public IEntity Load(int id, IDataRecord dataReader)
+        {
+            Product product = new Product();
+            product.Id = id;
+            product.Name = (string)dataReader["Name"];
+            product.Price = (decimal)dataReader["Price"];
+            return product;
+        }
+
+        public SqlParameter[] ModifyParameters(IEntity entity)
+        {
+            Product productEntity = (Product)entity;
+            return new[]
+                {
+                    new SqlParameter("@Name", productEntity.Name),
+                    new SqlParameter("@Price", productEntity.Price)
+                };
+        }
+
+        public string[] Columns
+        {
+            get { return new[] { "Name", "Price" }; }
+        }
+
+        public string TableName { get { return "Products"; } }
+    }
+}
@@ -2,6 +2,7 @@
 
 namespace OrmExample.Entities
 {
+    [Table("Discounts")]
     public class Discount : EntityInUow
     {
         private Product product;
@@ -12,6 +13,7 @@ namespace OrmExample.Entities
             return DiscountPolicy.CalculateDiscountedPrice(Product.Price);
         }
 
+        [Column]
         public Product Product
         {
             get { return product; }
@@ -2,6 +2,7 @@
 
 namespace OrmExample.Entities
 {
+    [Table("Products")]
     public class Product : EntityInUow
     {
         private string name;
@@ -19,6 +20,7 @@ namespace OrmExample.Entities
             return other.Id == Id;
         }
 
+        [Column]
         public string Name
         {
             get { return name; }
@@ -29,6 +31,7 @@ namespace OrmExample.Entities
             }
         }
 
+        [Column]
         public decimal Price
         {
             get { return price; }
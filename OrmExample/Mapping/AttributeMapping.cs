@@ -0,0 +1,174 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Data;
+using System.Data.SqlClient;
+using System.Linq;
+using System.Linq.Expressions;
+using System.Reflection;
+
+namespace OrmExample.Mapping
+{
+    // mapping read from [Table] and [Column]; accessors are compiled once per entity type,
+    // so loading a row costs the same as a hand-written mapping
+    internal class AttributeMapping<T> : IReferencingMapping, IVersionedMapping where T : class, IEntity, new()
+    {
+        private static readonly MethodInfo LoadReferenceMethod =
+            typeof(AttributeMapping<T>).GetMethod("LoadReference", BindingFlags.NonPublic | BindingFlags.Static);
+        private static readonly MethodInfo IsDBNullMethod = typeof(IDataRecord).GetMethod("IsDBNull");
+        // typed reads avoid boxing every value, anything else goes through GetValue and is unboxed
+        private static readonly Dictionary<Type, string> TypedGetters = new Dictionary<Type, string>
+            {
+                { typeof(string), "GetString" },
+                { typeof(int), "GetInt32" },
+                { typeof(long), "GetInt64" },
+                { typeof(short), "GetInt16" },
+                { typeof(byte), "GetByte" },
+                { typeof(bool), "GetBoolean" },
+                { typeof(decimal), "GetDecimal" },
+                { typeof(double), "GetDouble" },
+                { typeof(float), "GetFloat" },
+                { typeof(DateTime), "GetDateTime" },
+                { typeof(Guid), "GetGuid" }
+            };
+
+        private readonly string tableName;
+        private readonly string versionColumn;
+        private readonly string[] columns;
+        private readonly Dictionary<string, Type> references = new Dictionary<string, Type>();
+        private readonly Func<T> create;
+        private readonly Action<T, IDataRecord, int[]> populate;
+        private readonly Func<T, object>[] getters;
+        private int[] ordinals;
+
+        public AttributeMapping()
+        {
+            TableAttribute table = (TableAttribute)Attribute.GetCustomAttribute(typeof(T), typeof(TableAttribute));
+            if (table == null)
+                throw new InvalidOperationException(typeof(T).Name + " has no [Table] attribute");
+            PropertyInfo[] properties = typeof(T).GetProperties(BindingFlags.Public | BindingFlags.Instance)
+                                                 .Where(property => Attribute.IsDefined(property, typeof(ColumnAttribute)))
+                                                 .ToArray();
+            if (properties.Length == 0)
+                throw new InvalidOperationException(typeof(T).Name + " has no [Column] properties");
+
+            tableName = table.Name;
+            versionColumn = table.VersionColumn;
+            columns = properties.Select(ColumnName).ToArray();
+            for (int i = 0; i < properties.Length; i++)
+            {
+                if (IsReference(properties[i].PropertyType))
+                    references.Add(columns[i], properties[i].PropertyType);
+            }
+            create = Expression.Lambda<Func<T>>(Expression.New(typeof(T))).Compile();
+            populate = CompilePopulate(properties);
+            getters = properties.Select(CompileGetter).ToArray();
+        }
+
+        public IEntity Load(int id, IDataRecord dataReader)
+        {
+            T entity = create();
+            entity.Id = id;
+            populate(entity, dataReader, Ordinals(dataReader));
+            return entity;
+        }
+
+        public SqlParameter[] ModifyParameters(IEntity entity)
+        {
+            T typed = (T)entity;
+            SqlParameter[] parameters = new SqlParameter[columns.Length];
+            for (int i = 0; i < columns.Length; i++)
+            {
+                object value = getters[i](typed);
+                IEntity reference = value as IEntity;
+                parameters[i] = new SqlParameter(columns[i], reference != null ? reference.Id : value ?? DBNull.Value);
+            }
+            return parameters;
+        }
+
+        public string[] Columns
+        {
+            get { return columns; }
+        }
+
+        public string TableName
+        {
+            get { return tableName; }
+        }
+
+        public string VersionColumn
+        {
+            get { return versionColumn; }
+        }
+
+        public IDictionary<string, Type> References
+        {
+            get { return references; }
+        }
+
+        // every query selects Id followed by Columns, the layout of the first row holds for all later ones
+        private int[] Ordinals(IDataRecord record)
+        {
+            int[] resolved = ordinals;
+            if (resolved == null)
+                ordinals = resolved = columns.Select(record.GetOrdinal).ToArray();
+            return resolved;
+        }
+
+        private static string ColumnName(PropertyInfo property)
+        {
+            ColumnAttribute column = (ColumnAttribute)Attribute.GetCustomAttribute(property, typeof(ColumnAttribute));
+            if (column.Name != null)
+                return column.Name;
+            return IsReference(property.PropertyType) ? property.Name + "_Id" : property.Name;
+        }
+
+        private static bool IsReference(Type type)
+        {
+            return typeof(IEntity).IsAssignableFrom(type);
+        }
+
+        private static Action<T, IDataRecord, int[]> CompilePopulate(PropertyInfo[] properties)
+        {
+            ParameterExpression entity = Expression.Parameter(typeof(T), "entity");
+            ParameterExpression record = Expression.Parameter(typeof(IDataRecord), "record");
+            ParameterExpression ordinals = Expression.Parameter(typeof(int[]), "ordinals");
+            IEnumerable<Expression> assignments = properties.Select((property, i) =>
+                Expression.Assign(Expression.Property(entity, property),
+                                  ReadColumn(property.PropertyType, record, Expression.ArrayIndex(ordinals, Expression.Constant(i)))));
+            return Expression.Lambda<Action<T, IDataRecord, int[]>>(Expression.Block(typeof(void), assignments), entity, record, ordinals)
+                             .Compile();
+        }
+
+        private static Expression ReadColumn(Type type, ParameterExpression record, Expression ordinal)
+        {
+            if (IsReference(type))
+                return Expression.Convert(Expression.Call(LoadReferenceMethod, Expression.Constant(type), record, ordinal), type);
+
+            Type underlying = Nullable.GetUnderlyingType(type) ?? type;
+            string getter;
+            Expression value = TypedGetters.TryGetValue(underlying, out getter)
+                                   ? (Expression)Expression.Call(record, typeof(IDataRecord).GetMethod(getter), ordinal)
+                                   : Expression.Convert(Expression.Call(record, typeof(IDataRecord).GetMethod("GetValue"), ordinal), underlying);
+            if (underlying != type)
+                value = Expression.Convert(value, type);
+            // non-nullable value types fail on NULL just like a cast in a hand-written mapping
+            if (type.IsValueType && underlying == type)
+                return value;
+            return Expression.Condition(Expression.Call(record, IsDBNullMethod, ordinal), Expression.Default(type), value);
+        }
+
+        private static Func<T, object> CompileGetter(PropertyInfo property)
+        {
+            ParameterExpression entity = Expression.Parameter(typeof(T), "entity");
+            return Expression.Lambda<Func<T, object>>(Expression.Convert(Expression.Property(entity, property), typeof(object)), entity)
+                             .Compile();
+        }
+
+        private static IEntity LoadReference(Type type, IDataRecord record, int ordinal)
+        {
+            if (record.IsDBNull(ordinal))
+                return null;
+            return MapperRegistry.GetMapper(type).GetById(record.GetInt32(ordinal));
+        }
+    }
+}
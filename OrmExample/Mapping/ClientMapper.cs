@@ -1,5 +1,6 @@
 ﻿using System.Collections.Generic;
 using System.Linq;
+using System.Threading.Tasks;
 using OrmExample.Entities;
 
 namespace OrmExample.Mapping
@@ -8,9 +9,12 @@ namespace OrmExample.Mapping
     {
         private readonly EntityMapper mapper;
 
-        public ClientMapper(string connectionString)
+        public ClientMapper(MappingConfiguration configuration)
         {
-            mapper = new EntityMapper(connectionString, new ClientMapping());
+            AssociationTableLoader associationLoader = new AssociationTableLoader(configuration.ConnectionProvider, configuration.BatchFetchSize,
+                                                                                     configuration.PersistenceListener);
+            mapper = new EntityMapper(configuration, new ClientMapping(associationLoader, configuration.PrefetchLazyAssociations,
+                                                                   configuration.GetVersionColumn("Clients")));
             MapperRegistry.RegisterMapper(typeof(Client), mapper);
         }
 
@@ -19,11 +23,43 @@ namespace OrmExample.Mapping
             return (Client)mapper.GetById(id);
         }
 
+        public async Task<Client> GetByIdAsync(int id)
+        {
+            return (Client)await mapper.GetByIdAsync(id);
+        }
+
         public IEnumerable<Client> GetAll()
         {
             return mapper.GetAll().Cast<Client>();
         }
 
+        public IEnumerable<Client> FindMany(StatementSource source)
+        {
+            return mapper.FindMany(source).Cast<Client>();
+        }
+
+        public async Task<IList<Client>> FindManyAsync(StatementSource source)
+        {
+            IList<IEntity> entities = await mapper.FindManyAsync(source);
+            return entities.Cast<Client>().ToList();
+        }
+
+        public Page<Client> GetPage(StatementSource source, int pageSize, string continuationToken, bool registerInIdentityMap)
+        {
+            Page<IEntity> page = mapper.GetPage(source, pageSize, continuationToken, registerInIdentityMap);
+            return new Page<Client>(page.Items.Cast<Client>().ToList(), page.ContinuationToken);
+        }
+
+        public IEnumerable<Client> Stream(StatementSource source, bool registerInIdentityMap)
+        {
+            return mapper.Stream(source, registerInIdentityMap).Cast<Client>();
+        }
+
+        public ColumnarResult Project(StatementSource source, params string[] columns)
+        {
+            return mapper.Project(source, columns);
+        }
+
         public void Insert(Client entity)
         {
             UnitOfWork.Current.RegisterNew(entity);
@@ -1,16 +1,30 @@
-﻿using System.Data.SqlClient;
+﻿using System.Collections.Generic;
+using System.Data;
+using System.Data.SqlClient;
 using OrmExample.Entities;
 
 namespace OrmExample.Mapping
 {
-    class ClientMapping : IMapping
+    class ClientMapping : IVersionedMapping, IAssociatingMapping
     {
-        public IEntity Load(int id, SqlDataReader dataReader)
+        private readonly AssociationTableLoader associationLoader;
+        private readonly bool prefetchOffers;
+        private readonly string versionColumn;
+
+        public ClientMapping(AssociationTableLoader associationLoader, bool prefetchOffers, string versionColumn)
+        {
+            this.associationLoader = associationLoader;
+            this.prefetchOffers = prefetchOffers;
+            this.versionColumn = versionColumn;
+        }
+
+        public IEntity Load(int id, IDataRecord dataReader)
         {
             Client client = new Client();
             client.Id = id;
             client.Address = (string)dataReader["Address"];
             client.Name = (string)dataReader["Name"];
+            client.Offers = new VirtualList<Discount>(associationLoader.LoadLazily<Discount>(id, new ClientOffersMapping(), prefetchOffers));
             return client;
         }
 
@@ -33,5 +47,23 @@ namespace OrmExample.Mapping
         {
             get { return "Clients"; }
         }
+
+        // null unless configured, the Clients table has no version column by default
+        public string VersionColumn
+        {
+            get { return versionColumn; }
+        }
+
+        public IList<IAssociationMapping> Associations
+        {
+            get { return new IAssociationMapping[] { new ClientOffersMapping() }; }
+        }
+
+        // offers of the whole result set are then read by one background query instead of one per client
+        public void ResultSetLoaded()
+        {
+            if (prefetchOffers)
+                associationLoader.StartPrefetch(new ClientOffersMapping());
+        }
     }
 }
\ No newline at end of file
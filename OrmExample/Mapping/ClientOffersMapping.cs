@@ -0,0 +1,35 @@
+﻿using System;
+using System.Collections.Generic;
+using OrmExample.Entities;
+
+namespace OrmExample.Mapping
+{
+    internal class ClientOffersMapping : IAssociationMapping
+    {
+        public void Clear(IEntity owner)
+        {
+            // replaced rather than cleared, clearing a lazy list would load it first
+            ((Client)owner).Offers = new List<Discount>();
+        }
+
+        public void Add(IEntity owner, IEntity target)
+        {
+            ((Client)owner).Offer((Discount)target);
+        }
+
+        public IEnumerable<IEntity> GetLoaded(IEntity owner)
+        {
+            ICollection<Discount> offers = ((Client)owner).Offers;
+            VirtualList<Discount> lazy = offers as VirtualList<Discount>;
+            if (lazy != null && lazy.IsLoaded == false)
+                return null;
+            return offers;
+        }
+
+        public string LinkTable { get { return "ClientOffers"; } }
+        public string OwnerColumn { get { return "Client_Id"; } }
+        public string TargetColumn { get { return "Discount_Id"; } }
+        public Type OwnerType { get { return typeof(Client); } }
+        public Type TargetType { get { return typeof(Discount); } }
+    }
+}
@@ -0,0 +1,20 @@
+﻿using System;
+
+namespace OrmExample.Mapping
+{
+    // the property name unless given; an entity-typed property maps to its foreign key, <Property>_Id by default
+    [AttributeUsage(AttributeTargets.Property)]
+    public sealed class ColumnAttribute : Attribute
+    {
+        public ColumnAttribute()
+        {
+        }
+
+        public ColumnAttribute(string name)
+        {
+            Name = name;
+        }
+
+        public string Name { get; private set; }
+    }
+}
@@ -3,6 +3,7 @@ using System.Collections.Generic;
 using System.Data;
 using System.Data.SqlClient;
 using System.Linq;
+using System.Threading.Tasks;
 using OrmExample.Entities;
 
 namespace OrmExample.Mapping
@@ -11,9 +12,9 @@ namespace OrmExample.Mapping
     {
         private readonly EntityMapper entityMapper;
 
-        public DiscountPoliciesMapper(string connectionString)
+        public DiscountPoliciesMapper(MappingConfiguration configuration)
         {
-            entityMapper = new EntityMapper(connectionString, new DiscountPolicyMapping());
+            entityMapper = new EntityMapper(configuration, new DiscountPolicyMapping());
         }
 
         public DiscountPolicyBase GetById(int id)
@@ -21,11 +22,43 @@ namespace OrmExample.Mapping
             return (DiscountPolicyBase)entityMapper.GetById(id);
         }
 
+        public async Task<DiscountPolicyBase> GetByIdAsync(int id)
+        {
+            return (DiscountPolicyBase)await entityMapper.GetByIdAsync(id);
+        }
+
         public IEnumerable<DiscountPolicyBase> GetAll()
         {
             return entityMapper.GetAll().Cast<DiscountPolicyBase>();
         }
 
+        public IEnumerable<DiscountPolicyBase> FindMany(StatementSource source)
+        {
+            return entityMapper.FindMany(source).Cast<DiscountPolicyBase>();
+        }
+
+        public async Task<IList<DiscountPolicyBase>> FindManyAsync(StatementSource source)
+        {
+            IList<IEntity> entities = await entityMapper.FindManyAsync(source);
+            return entities.Cast<DiscountPolicyBase>().ToList();
+        }
+
+        public Page<DiscountPolicyBase> GetPage(StatementSource source, int pageSize, string continuationToken, bool registerInIdentityMap)
+        {
+            Page<IEntity> page = entityMapper.GetPage(source, pageSize, continuationToken, registerInIdentityMap);
+            return new Page<DiscountPolicyBase>(page.Items.Cast<DiscountPolicyBase>().ToList(), page.ContinuationToken);
+        }
+
+        public IEnumerable<DiscountPolicyBase> Stream(StatementSource source, bool registerInIdentityMap)
+        {
+            return entityMapper.Stream(source, registerInIdentityMap).Cast<DiscountPolicyBase>();
+        }
+
+        public ColumnarResult Project(StatementSource source, params string[] columns)
+        {
+            return entityMapper.Project(source, columns);
+        }
+
         public void Insert(DiscountPolicyBase entity)
         {
             entityMapper.Insert(entity);
@@ -1,5 +1,6 @@
 ﻿using System;
 using System.Collections.Generic;
+using System.Data;
 using System.Data.SqlClient;
 using System.Linq;
 using OrmExample.Entities;
@@ -11,7 +12,7 @@ namespace OrmExample.Mapping
         private readonly PromoDayMapping promoDayMapping = new PromoDayMapping();
         private readonly DiscountUntilExpiredMapping discountUntilExpiredMapping = new DiscountUntilExpiredMapping();
 
-        public IEntity Load(int id, SqlDataReader dataReader)
+        public IEntity Load(int id, IDataRecord dataReader)
         {
             string typeName = (string)dataReader["Discriminator"];
             if (typeName == typeof(PromoDay).Name)
@@ -78,7 +79,7 @@ namespace OrmExample.Mapping
 
     internal class DiscountUntilExpiredMapping
     {
-        public IEntity Load(int id, SqlDataReader dataReader)
+        public IEntity Load(int id, IDataRecord dataReader)
         {
             DiscountUntilExpired discountUntilExpired = new DiscountUntilExpired();
             discountUntilExpired.Id = id;
@@ -107,7 +108,7 @@ namespace OrmExample.Mapping
 
     internal class PromoDayMapping
     {
-        public IEntity Load(int id, SqlDataReader dataReader)
+        public IEntity Load(int id, IDataRecord dataReader)
         {
             PromoDay promoDay = new PromoDay();
             promoDay.Id = id;
@@ -0,0 +1,75 @@
+﻿using System.Collections.Generic;
+using System.Linq;
+using System.Threading.Tasks;
+
+namespace OrmExample.Mapping
+{
+    // mapper for any entity annotated with [Table] and [Column]
+    public class GenericMapper<T> : IMapper<T> where T : class, IEntity, new()
+    {
+        private readonly EntityMapper mapper;
+
+        public GenericMapper(MappingConfiguration configuration)
+        {
+            mapper = new EntityMapper(configuration, new AttributeMapping<T>());
+            MapperRegistry.RegisterMapper(typeof(T), mapper);
+        }
+
+        public T GetById(int id)
+        {
+            return (T)mapper.GetById(id);
+        }
+
+        public async Task<T> GetByIdAsync(int id)
+        {
+            return (T)await mapper.GetByIdAsync(id);
+        }
+
+        public IEnumerable<T> GetAll()
+        {
+            return mapper.GetAll().Cast<T>();
+        }
+
+        public IEnumerable<T> FindMany(StatementSource source)
+        {
+            return mapper.FindMany(source).Cast<T>();
+        }
+
+        public async Task<IList<T>> FindManyAsync(StatementSource source)
+        {
+            IList<IEntity> entities = await mapper.FindManyAsync(source);
+            return entities.Cast<T>().ToList();
+        }
+
+        public Page<T> GetPage(StatementSource source, int pageSize, string continuationToken, bool registerInIdentityMap)
+        {
+            Page<IEntity> page = mapper.GetPage(source, pageSize, continuationToken, registerInIdentityMap);
+            return new Page<T>(page.Items.Cast<T>().ToList(), page.ContinuationToken);
+        }
+
+        public IEnumerable<T> Stream(StatementSource source, bool registerInIdentityMap)
+        {
+            return mapper.Stream(source, registerInIdentityMap).Cast<T>();
+        }
+
+        public ColumnarResult Project(StatementSource source, params string[] columns)
+        {
+            return mapper.Project(source, columns);
+        }
+
+        public void Insert(T entity)
+        {
+            mapper.Insert(entity);
+        }
+
+        public void Update(T entity)
+        {
+            mapper.Update(entity);
+        }
+
+        public void DeleteById(int id)
+        {
+            mapper.DeleteById(id);
+        }
+    }
+}
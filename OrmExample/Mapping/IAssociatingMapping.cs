@@ -0,0 +1,13 @@
+﻿using System.Collections.Generic;
+
+namespace OrmExample.Mapping
+{
+    // owner side of link table associations, their loaded collections are diffed on commit
+    public interface IAssociatingMapping : IMapping
+    {
+        IList<IAssociationMapping> Associations { get; }
+
+        // called by the mapper each time it has mapped a result set
+        void ResultSetLoaded();
+    }
+}
@@ -0,0 +1,19 @@
+﻿using System;
+using System.Collections.Generic;
+
+namespace OrmExample.Mapping
+{
+    // many-to-many association kept in a link table holding only the two foreign keys
+    public interface IAssociationMapping
+    {
+        string LinkTable { get; }
+        string OwnerColumn { get; }
+        string TargetColumn { get; }
+        Type OwnerType { get; }
+        Type TargetType { get; }
+        void Clear(IEntity owner);
+        void Add(IEntity owner, IEntity target);
+        // the owner's collection, null while it is still lazy and so cannot have changed
+        IEnumerable<IEntity> GetLoaded(IEntity owner);
+    }
+}
@@ -1,11 +1,18 @@
 ﻿using System.Collections.Generic;
+using System.Threading.Tasks;
 
 namespace OrmExample.Mapping
 {
     public interface IMapper<T> where T : IEntity
     {
         T GetById(int id);
+        Task<T> GetByIdAsync(int id);
         IEnumerable<T> GetAll();
+        IEnumerable<T> FindMany(StatementSource source);
+        Task<IList<T>> FindManyAsync(StatementSource source);
+        Page<T> GetPage(StatementSource source, int pageSize, string continuationToken, bool registerInIdentityMap);
+        IEnumerable<T> Stream(StatementSource source, bool registerInIdentityMap);
+        ColumnarResult Project(StatementSource source, params string[] columns);
         void Insert(T entity);
         void Update(T entity);
         void DeleteById(int id);
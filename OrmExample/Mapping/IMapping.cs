@@ -1,10 +1,11 @@
-﻿using System.Data.SqlClient;
+﻿using System.Data;
+using System.Data.SqlClient;
 
 namespace OrmExample.Mapping
 {
     public interface IMapping
     {
-        IEntity Load(int id, SqlDataReader dataReader);
+        IEntity Load(int id, IDataRecord dataReader);
         string[] Columns { get; }
         string TableName { get; }
         SqlParameter[] ModifyParameters(IEntity entity);
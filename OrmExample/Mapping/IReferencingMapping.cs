@@ -0,0 +1,11 @@
+﻿using System;
+using System.Collections.Generic;
+
+namespace OrmExample.Mapping
+{
+    public interface IReferencingMapping : IMapping
+    {
+        // foreign key column name -> referenced entity type
+        IDictionary<string, Type> References { get; }
+    }
+}
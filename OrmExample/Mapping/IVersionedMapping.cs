@@ -0,0 +1,8 @@
+﻿namespace OrmExample.Mapping
+{
+    // an integer column bumped by every update; updates and deletes only match the version that was read
+    public interface IVersionedMapping : IMapping
+    {
+        string VersionColumn { get; }
+    }
+}
@@ -0,0 +1,295 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Data.SqlClient;
+using System.Diagnostics;
+using System.Linq;
+using System.Threading;
+using System.Threading.Tasks;
+
+namespace OrmExample.Mapping
+{
+    public enum AssociationLoadMode
+    {
+        // link table joined with the target table, targets are mapped from the same rows
+        Joined,
+        // link rows first, then the distinct targets through the target mapper (identity map and cache first)
+        Separate
+    }
+
+    // fills the associations of many owners at once, with one query per BatchFetchSize owners
+    // instead of one per owner; rows may come in any order
+    public class AssociationTableLoader
+    {
+        private const string TargetIdsQueryTemplate = "SELECT {0} FROM {1} WHERE {2} = @Owner";
+        private const string LinksQueryTemplate = "SELECT {0}, {1} FROM {2} WHERE {0} IN ({3})";
+        private const string JoinedQueryTemplate =
+            "SELECT {0}, l.{1} AS AssociationOwner_Id FROM {2} l JOIN {3} t ON t.Id = l.{4} WHERE l.{1} IN ({5})";
+
+        private readonly IConnectionProvider connections;
+        private readonly int batchFetchSize;
+        private readonly IPersistenceListener listener;
+        private readonly object sync = new object();
+        // per link table, the owners loaded lazily with prefetch since the last StartPrefetch
+        private readonly Dictionary<string, PrefetchGroup> openGroups = new Dictionary<string, PrefetchGroup>();
+
+        public AssociationTableLoader(IConnectionProvider connections, int batchFetchSize, IPersistenceListener listener)
+        {
+            this.connections = connections;
+            this.batchFetchSize = batchFetchSize;
+            this.listener = listener;
+        }
+
+        public void Load(IEnumerable<IEntity> owners, IAssociationMapping association, AssociationLoadMode mode)
+        {
+            Dictionary<int, IEntity> ownersById = new Dictionary<int, IEntity>();
+            foreach (IEntity owner in owners)
+            {
+                if (ownersById.ContainsKey(owner.Id))
+                    continue;
+                ownersById.Add(owner.Id, owner);
+                association.Clear(owner);
+            }
+            if (ownersById.Count == 0)
+                return;
+
+            IEntityMapper targetMapper = MapperRegistry.GetMapper(association.TargetType);
+            if (mode == AssociationLoadMode.Joined)
+                LoadJoined(ownersById, association, targetMapper);
+            else
+                LoadSeparate(ownersById, association, targetMapper);
+
+            IEntityMapper ownerMapper = MapperRegistry.GetMapper(association.OwnerType);
+            foreach (IEntity owner in ownersById.Values)
+            {
+                ownerMapper.LinksLoaded(association, owner.Id, association.GetLoaded(owner).Select(target => target.Id));
+            }
+        }
+
+        // targets of a single owner, read when first needed or, with prefetch, together with the other owners
+        // of its result set in the background once StartPrefetch is called
+        public ValueHolder<IList<T>> LoadLazily<T>(int ownerId, IAssociationMapping association, bool prefetch)
+            where T : IEntity
+        {
+            Func<List<int>, IList<T>> map = ids =>
+                {
+                    if (listener != null)
+                        listener.LazyLoaded(association.LinkTable);
+                    MapperRegistry.GetMapper(association.OwnerType).LinksLoaded(association, ownerId, ids);
+                    return MapperRegistry.GetMapper(association.TargetType)
+                                         .GetByIds(ids)
+                                         .Cast<T>()
+                                         .ToList();
+                };
+            if (prefetch == false)
+                return new ValueHolder<IList<T>>(() => map(ReadTargetIds(ownerId, association)));
+            PrefetchGroup group = JoinGroup(ownerId, association);
+            return new ValueHolder<IList<T>>(() =>
+                {
+                    List<int> ids;
+                    try
+                    {
+                        // a read before StartPrefetch starts the query itself
+                        if (group.Start().GetAwaiter().GetResult().TryGetValue(ownerId, out ids) == false)
+                            ids = new List<int>();
+                    }
+                    catch (OperationCanceledException)
+                    {
+                        throw;
+                    }
+                    catch (ThreadAbortException)
+                    {
+                        throw;
+                    }
+                    catch (Exception e)
+                    {
+                        // the group's query failed for every owner in it, each read fetches its own rows again
+                        Trace.TraceWarning("prefetch of {0} failed, reading owner {1} alone: {2}", association.LinkTable, ownerId, e.Message);
+                        ids = ReadTargetIds(ownerId, association);
+                    }
+                    return map(ids);
+                });
+        }
+
+        // one query per BatchFetchSize owners on a pool thread; it only touches the database, owners
+        // map their targets on the thread that first reads them
+        public void StartPrefetch(IAssociationMapping association)
+        {
+            PrefetchGroup group;
+            lock (sync)
+            {
+                if (openGroups.TryGetValue(association.LinkTable, out group) == false)
+                    return;
+                openGroups.Remove(association.LinkTable);
+            }
+            group.Start();
+        }
+
+        private PrefetchGroup JoinGroup(int ownerId, IAssociationMapping association)
+        {
+            lock (sync)
+            {
+                PrefetchGroup group;
+                if (openGroups.TryGetValue(association.LinkTable, out group) && group.TryJoin(ownerId))
+                    return group;
+                group = new PrefetchGroup(ownerIds => ReadTargetIds(ownerIds, association));
+                group.TryJoin(ownerId);
+                openGroups[association.LinkTable] = group;
+                return group;
+            }
+        }
+
+        private void LoadJoined(Dictionary<int, IEntity> ownersById, IAssociationMapping association, IEntityMapper targetMapper)
+        {
+            string columns = string.Join(", ", EntityMapper.SelectedColumns(targetMapper.Mapping).Select(column => "t." + column));
+            List<CachedRow> rows = ReadChunked(association.LinkTable, ownersById.Keys, parameterNames => string.Format(
+                JoinedQueryTemplate, columns, association.OwnerColumn, association.LinkTable,
+                targetMapper.Mapping.TableName, association.TargetColumn, parameterNames));
+            if (rows.Count == 0)
+                return;
+
+            IList<IEntity> targets = targetMapper.LoadRows(rows);
+            int ownerOrdinal = rows[0].GetOrdinal("AssociationOwner_Id");
+            for (int i = 0; i < rows.Count; i++)
+            {
+                association.Add(ownersById[rows[i].GetInt32(ownerOrdinal)], targets[i]);
+            }
+        }
+
+        private void LoadSeparate(Dictionary<int, IEntity> ownersById, IAssociationMapping association, IEntityMapper targetMapper)
+        {
+            List<CachedRow> links = ReadChunked(association.LinkTable, ownersById.Keys, parameterNames => string.Format(
+                LinksQueryTemplate, association.OwnerColumn, association.TargetColumn, association.LinkTable, parameterNames));
+            if (links.Count == 0)
+                return;
+
+            Dictionary<int, IEntity> targetsById = targetMapper.GetByIds(links.Select(link => link.GetInt32(1)))
+                                                               .Cast<IEntity>()
+                                                               .ToDictionary(target => target.Id);
+            foreach (CachedRow link in links)
+            {
+                IEntity target;
+                if (targetsById.TryGetValue(link.GetInt32(1), out target))
+                    association.Add(ownersById[link.GetInt32(0)], target);
+            }
+        }
+
+        private Dictionary<int, List<int>> ReadTargetIds(ICollection<int> ownerIds, IAssociationMapping association)
+        {
+            List<CachedRow> links = ReadChunked(association.LinkTable, ownerIds, parameterNames => string.Format(
+                LinksQueryTemplate, association.OwnerColumn, association.TargetColumn, association.LinkTable, parameterNames));
+            Dictionary<int, List<int>> targetIds = new Dictionary<int, List<int>>();
+            foreach (CachedRow link in links)
+            {
+                List<int> ids;
+                if (targetIds.TryGetValue(link.GetInt32(0), out ids) == false)
+                    targetIds.Add(link.GetInt32(0), ids = new List<int>());
+                ids.Add(link.GetInt32(1));
+            }
+            return targetIds;
+        }
+
+        private List<int> ReadTargetIds(int ownerId, IAssociationMapping association)
+        {
+            List<int> ids = new List<int>();
+            ConnectionLease lease = connections.Acquire();
+            try
+            {
+                string query = string.Format(TargetIdsQueryTemplate, association.TargetColumn, association.LinkTable, association.OwnerColumn);
+                SqlCommand command = lease.Statements.Prepare(query, null);
+                command.Parameters.Add(new SqlParameter("Owner", ownerId));
+                long started = listener != null ? Timestamp.Now() : 0;
+                using (SqlDataReader dataReader = command.ExecuteReader())
+                {
+                    while (dataReader.Read())
+                    {
+                        ids.Add(dataReader.GetInt32(0));
+                    }
+                }
+                // one such query per owner is what the bulk Load avoids, the key lets listeners notice
+                Executed(association.LinkTable, query, ownerId, started, ids.Count);
+            }
+            finally
+            {
+                connections.Release(lease);
+            }
+            return ids;
+        }
+
+        private List<CachedRow> ReadChunked(string linkTable, ICollection<int> ownerIds, Func<string, string> buildQuery)
+        {
+            List<CachedRow> rows = new List<CachedRow>();
+            ConnectionLease lease = connections.Acquire();
+            try
+            {
+                for (int offset = 0; offset < ownerIds.Count; offset += batchFetchSize)
+                {
+                    int[] chunk = ownerIds.Skip(offset).Take(batchFetchSize).ToArray();
+                    SqlCommand command = lease.Statements.Prepare(buildQuery(string.Join(", ", chunk.Select((id, i) => "@Owner_" + i))), null);
+                    command.Parameters.AddRange(chunk.Select((id, i) => new SqlParameter("Owner_" + i, id)).ToArray());
+                    long started = listener != null ? Timestamp.Now() : 0;
+                    int rowsBefore = rows.Count;
+                    using (SqlDataReader dataReader = command.ExecuteReader())
+                    {
+                        while (dataReader.Read())
+                        {
+                            rows.Add(CachedRow.From(dataReader));
+                        }
+                    }
+                    Executed(linkTable, command.CommandText, null, started, rows.Count - rowsBefore);
+                }
+            }
+            finally
+            {
+                connections.Release(lease);
+            }
+            // targets are mapped after the connection is released, loading them may need one again
+            return rows;
+        }
+
+        private void Executed(string linkTable, string sql, object key, long started, int rows)
+        {
+            if (listener != null)
+                listener.StatementExecuted(linkTable, sql, key, Timestamp.ElapsedSince(started), rows);
+        }
+
+        // owners whose link rows are read by one query, started by StartPrefetch or the first read
+        private class PrefetchGroup
+        {
+            private readonly object sync = new object();
+            private readonly List<int> ownerIds = new List<int>();
+            private readonly Func<List<int>, Dictionary<int, List<int>>> fetch;
+            private Task<Dictionary<int, List<int>>> task;
+
+            public PrefetchGroup(Func<List<int>, Dictionary<int, List<int>>> fetch)
+            {
+                this.fetch = fetch;
+            }
+
+            // false once started, the owner needs another group
+            public bool TryJoin(int ownerId)
+            {
+                lock (sync)
+                {
+                    if (task != null)
+                        return false;
+                    ownerIds.Add(ownerId);
+                    return true;
+                }
+            }
+
+            public Task<Dictionary<int, List<int>>> Start()
+            {
+                lock (sync)
+                {
+                    if (task == null)
+                    {
+                        task = Task.Run(() => fetch(ownerIds));
+                        // observed even when no owner is ever read, the readers fetch again on their own
+                        task.ContinueWith(failed => failed.Exception, TaskContinuationOptions.OnlyOnFaulted);
+                    }
+                    return task;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+﻿using System;
+using System.Data;
+
+namespace OrmExample.Mapping
+{
+    // detached copy of a single row, lets mappings load entities without an open reader
+    public class CachedRow : IDataRecord
+    {
+        private readonly string[] names;
+        private readonly object[] values;
+
+        public CachedRow(string[] names, object[] values)
+        {
+            this.names = names;
+            this.values = values;
+        }
+
+        public static CachedRow From(IDataRecord record)
+        {
+            string[] names = new string[record.FieldCount];
+            for (int i = 0; i < names.Length; i++)
+            {
+                names[i] = record.GetName(i);
+            }
+            object[] values = new object[record.FieldCount];
+            record.GetValues(values);
+            return new CachedRow(names, values);
+        }
+
+        public int FieldCount
+        {
+            get { return values.Length; }
+        }
+
+        public object this[int i]
+        {
+            get { return values[i]; }
+        }
+
+        public object this[string name]
+        {
+            get { return values[GetOrdinal(name)]; }
+        }
+
+        public string GetName(int i)
+        {
+            return names[i];
+        }
+
+        public int GetOrdinal(string name)
+        {
+            for (int i = 0; i < names.Length; i++)
+            {
+                if (string.Equals(names[i], name, StringComparison.OrdinalIgnoreCase))
+                    return i;
+            }
+            throw new IndexOutOfRangeException(name);
+        }
+
+        public object GetValue(int i)
+        {
+            return values[i];
+        }
+
+        public int GetValues(object[] destination)
+        {
+            int count = Math.Min(destination.Length, values.Length);
+            Array.Copy(values, destination, count);
+            return count;
+        }
+
+        public bool IsDBNull(int i)
+        {
+            return values[i] == DBNull.Value;
+        }
+
+        public string GetDataTypeName(int i)
+        {
+            return GetFieldType(i).Name;
+        }
+
+        public Type GetFieldType(int i)
+        {
+            return values[i].GetType();
+        }
+
+        public bool GetBoolean(int i)
+        {
+            return (bool)values[i];
+        }
+
+        public byte GetByte(int i)
+        {
+            return (byte)values[i];
+        }
+
+        public char GetChar(int i)
+        {
+            return (char)values[i];
+        }
+
+        public Guid GetGuid(int i)
+        {
+            return (Guid)values[i];
+        }
+
+        public short GetInt16(int i)
+        {
+            return (short)values[i];
+        }
+
+        public int GetInt32(int i)
+        {
+            return (int)values[i];
+        }
+
+        public long GetInt64(int i)
+        {
+            return (long)values[i];
+        }
+
+        public float GetFloat(int i)
+        {
+            return (float)values[i];
+        }
+
+        public double GetDouble(int i)
+        {
+            return (double)values[i];
+        }
+
+        public string GetString(int i)
+        {
+            return (string)values[i];
+        }
+
+        public decimal GetDecimal(int i)
+        {
+            return (decimal)values[i];
+        }
+
+        public DateTime GetDateTime(int i)
+        {
+            return (DateTime)values[i];
+        }
+
+        public long GetBytes(int i, long fieldOffset, byte[] buffer, int bufferoffset, int length)
+        {
+            byte[] bytes = (byte[])values[i];
+            if (buffer == null)
+                return bytes.Length;
+            int copied = CopiedLength(bytes.Length, fieldOffset, buffer.Length, bufferoffset, length);
+            Array.Copy(bytes, fieldOffset, buffer, bufferoffset, copied);
+            return copied;
+        }
+
+        public long GetChars(int i, long fieldoffset, char[] buffer, int bufferoffset, int length)
+        {
+            string text = (string)values[i];
+            if (buffer == null)
+                return text.Length;
+            int copied = CopiedLength(text.Length, fieldoffset, buffer.Length, bufferoffset, length);
+            text.CopyTo((int)fieldoffset, buffer, bufferoffset, copied);
+            return copied;
+        }
+
+        // nested readers only come from OLE DB chapters, never from SQL Server rows
+        public IDataReader GetData(int i)
+        {
+            throw new NotSupportedException("a cached row holds no nested readers");
+        }
+
+        // as with the live readers: the chunk must fit the buffer, an offset past the value reads nothing
+        private static int CopiedLength(int valueLength, long fieldOffset, int bufferLength, int bufferOffset, int length)
+        {
+            if (fieldOffset < 0)
+                throw new ArgumentOutOfRangeException("fieldOffset");
+            if (bufferOffset < 0 || bufferOffset > bufferLength)
+                throw new ArgumentOutOfRangeException("bufferOffset");
+            if (length < 0 || bufferOffset + length > bufferLength)
+                throw new ArgumentOutOfRangeException("length");
+            if (fieldOffset >= valueLength)
+                return 0;
+            return (int)Math.Min(length, valueLength - fieldOffset);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+﻿using System;
+using System.Collections;
+using System.Collections.Generic;
+using System.Data;
+
+namespace OrmExample.Mapping
+{
+    // read-only rows of a projection, stored per column: value types in plain arrays, strings as codes
+    // into a dictionary of the distinct values; nothing is boxed per row and no entity is created
+    public class ColumnarResult : IEnumerable<ProjectedRow>
+    {
+        private const int InitialCapacity = 256;
+
+        private readonly string[] names;
+        private readonly Column[] columns;
+        private int count;
+
+        internal ColumnarResult(IDataRecord layout)
+        {
+            names = new string[layout.FieldCount];
+            columns = new Column[layout.FieldCount];
+            for (int i = 0; i < names.Length; i++)
+            {
+                names[i] = layout.GetName(i);
+                columns[i] = Column.For(layout.GetFieldType(i));
+            }
+        }
+
+        public int Count
+        {
+            get { return count; }
+        }
+
+        public ProjectedRow this[int row]
+        {
+            get
+            {
+                if (row < 0 || row >= count)
+                    throw new ArgumentOutOfRangeException("row");
+                return new ProjectedRow(this, row);
+            }
+        }
+
+        // resolve once and use the ordinal overloads inside loops over many rows
+        public int GetOrdinal(string name)
+        {
+            for (int i = 0; i < names.Length; i++)
+            {
+                if (string.Equals(names[i], name, StringComparison.OrdinalIgnoreCase))
+                    return i;
+            }
+            throw new IndexOutOfRangeException(name);
+        }
+
+        // number of different strings stored for a column, each kept once however many rows hold it
+        public int GetDistinctCount(int column)
+        {
+            StringColumn strings = columns[column] as StringColumn;
+            if (strings == null)
+                throw new InvalidOperationException(names[column] + " is not a text column");
+            return strings.DistinctCount;
+        }
+
+        public T Get<T>(int row, int column) where T : struct
+        {
+            ValueColumn<T> values = columns[column] as ValueColumn<T>;
+            if (values == null)
+                throw new InvalidCastException(names[column] + " is not of type " + typeof(T).Name);
+            return values.Get(row);
+        }
+
+        public string GetString(int row, int column)
+        {
+            StringColumn strings = columns[column] as StringColumn;
+            if (strings == null)
+                throw new InvalidCastException(names[column] + " is not a text column");
+            return strings.Get(row);
+        }
+
+        public bool IsNull(int row, int column)
+        {
+            return columns[column].IsNull(row);
+        }
+
+        public object GetValue(int row, int column)
+        {
+            return columns[column].IsNull(row) ? DBNull.Value : columns[column].GetValue(row);
+        }
+
+        public IEnumerator<ProjectedRow> GetEnumerator()
+        {
+            for (int row = 0; row < count; row++)
+            {
+                yield return new ProjectedRow(this, row);
+            }
+        }
+
+        IEnumerator IEnumerable.GetEnumerator()
+        {
+            return GetEnumerator();
+        }
+
+        internal void Append(IDataRecord record)
+        {
+            for (int i = 0; i < columns.Length; i++)
+            {
+                columns[i].Append(count, record, i);
+            }
+            count++;
+        }
+
+        private abstract class Column
+        {
+            private bool[] nulls = new bool[InitialCapacity];
+
+            public static Column For(Type type)
+            {
+                if (type == typeof(string))
+                    return new StringColumn();
+                if (type == typeof(int))
+                    return new ValueColumn<int>((record, i) => record.GetInt32(i));
+                if (type == typeof(long))
+                    return new ValueColumn<long>((record, i) => record.GetInt64(i));
+                if (type == typeof(short))
+                    return new ValueColumn<short>((record, i) => record.GetInt16(i));
+                if (type == typeof(byte))
+                    return new ValueColumn<byte>((record, i) => record.GetByte(i));
+                if (type == typeof(bool))
+                    return new ValueColumn<bool>((record, i) => record.GetBoolean(i));
+                if (type == typeof(decimal))
+                    return new ValueColumn<decimal>((record, i) => record.GetDecimal(i));
+                if (type == typeof(double))
+                    return new ValueColumn<double>((record, i) => record.GetDouble(i));
+                if (type == typeof(float))
+                    return new ValueColumn<float>((record, i) => record.GetFloat(i));
+                if (type == typeof(DateTime))
+                    return new ValueColumn<DateTime>((record, i) => record.GetDateTime(i));
+                if (type == typeof(Guid))
+                    return new ValueColumn<Guid>((record, i) => record.GetGuid(i));
+                throw new NotSupportedException("columns of type " + type.Name + " cannot be projected");
+            }
+
+            public bool IsNull(int row)
+            {
+                return nulls[row];
+            }
+
+            public void Append(int row, IDataRecord record, int ordinal)
+            {
+                if (row == nulls.Length)
+                {
+                    Array.Resize(ref nulls, row * 2);
+                    Grow(row * 2);
+                }
+                if (record.IsDBNull(ordinal))
+                    nulls[row] = true;
+                else
+                    Set(row, record, ordinal);
+            }
+
+            public abstract object GetValue(int row);
+
+            protected abstract void Grow(int capacity);
+
+            protected abstract void Set(int row, IDataRecord record, int ordinal);
+        }
+
+        private class ValueColumn<T> : Column where T : struct
+        {
+            private readonly Func<IDataRecord, int, T> read;
+            private T[] values = new T[InitialCapacity];
+
+            public ValueColumn(Func<IDataRecord, int, T> read)
+            {
+                this.read = read;
+            }
+
+            // default(T) for NULL, check IsNull where that matters
+            public T Get(int row)
+            {
+                return values[row];
+            }
+
+            public override object GetValue(int row)
+            {
+                return values[row];
+            }
+
+            protected override void Grow(int capacity)
+            {
+                Array.Resize(ref values, capacity);
+            }
+
+            protected override void Set(int row, IDataRecord record, int ordinal)
+            {
+                values[row] = read(record, ordinal);
+            }
+        }
+
+        private class StringColumn : Column
+        {
+            private readonly Dictionary<string, int> codes = new Dictionary<string, int>(StringComparer.Ordinal);
+            private readonly List<string> distinct = new List<string>();
+            private int[] rows = new int[InitialCapacity];
+
+            public int DistinctCount
+            {
+                get { return distinct.Count; }
+            }
+
+            public string Get(int row)
+            {
+                return IsNull(row) ? null : distinct[rows[row]];
+            }
+
+            public override object GetValue(int row)
+            {
+                return Get(row);
+            }
+
+            protected override void Grow(int capacity)
+            {
+                Array.Resize(ref rows, capacity);
+            }
+
+            protected override void Set(int row, IDataRecord record, int ordinal)
+            {
+                string value = record.GetString(ordinal);
+                int code;
+                if (codes.TryGetValue(value, out code) == false)
+                {
+                    code = distinct.Count;
+                    codes.Add(value, code);
+                    distinct.Add(value);
+                }
+                rows[row] = code;
+            }
+        }
+    }
+
+    // a position in a ColumnarResult, as cheap to pass around as the index it wraps
+    public struct ProjectedRow
+    {
+        private readonly ColumnarResult result;
+        private readonly int row;
+
+        internal ProjectedRow(ColumnarResult result, int row)
+        {
+            this.result = result;
+            this.row = row;
+        }
+
+        public int Id
+        {
+            get { return result.Get<int>(row, 0); }
+        }
+
+        public T Get<T>(int column) where T : struct
+        {
+            return result.Get<T>(row, column);
+        }
+
+        public T Get<T>(string column) where T : struct
+        {
+            return result.Get<T>(row, result.GetOrdinal(column));
+        }
+
+        public string GetString(int column)
+        {
+            return result.GetString(row, column);
+        }
+
+        public string GetString(string column)
+        {
+            return result.GetString(row, result.GetOrdinal(column));
+        }
+
+        public bool IsNull(string column)
+        {
+            return result.IsNull(row, result.GetOrdinal(column));
+        }
+
+        public object this[string column]
+        {
+            get { return result.GetValue(row, result.GetOrdinal(column)); }
+        }
+    }
+}
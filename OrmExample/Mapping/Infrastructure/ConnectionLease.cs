@@ -0,0 +1,26 @@
+﻿using System;
+using System.Data.SqlClient;
+
+namespace OrmExample.Mapping
+{
+    // open connection handed out by a provider together with the commands cached for it
+    public class ConnectionLease
+    {
+        public ConnectionLease(SqlConnection connection, int statementCacheSize)
+        {
+            Connection = connection;
+            Statements = new StatementCache(connection, statementCacheSize);
+        }
+
+        public SqlConnection Connection { get; private set; }
+        public StatementCache Statements { get; private set; }
+        public DateTime AcquiredAt { get; internal set; }
+        public string AcquiredBy { get; internal set; }
+
+        internal void Close()
+        {
+            Statements.Dispose();
+            Connection.Dispose();
+        }
+    }
+}
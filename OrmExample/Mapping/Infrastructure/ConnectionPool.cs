@@ -0,0 +1,206 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Data;
+using System.Data.SqlClient;
+using System.Diagnostics;
+using System.Linq;
+using System.Threading;
+
+namespace OrmExample.Mapping
+{
+    // keeps physical connections open together with their statement caches, so cached commands
+    // survive between operations; SqlClient's own pool would hand out a fresh SqlConnection every time
+    public class ConnectionPool : IConnectionProvider, IDisposable
+    {
+        private readonly object sync = new object();
+        private readonly string connectionString;
+        private readonly int maxSize;
+        private readonly SemaphoreSlim slots;
+        private readonly Stack<ConnectionLease> idle = new Stack<ConnectionLease>();
+        private readonly HashSet<ConnectionLease> active = new HashSet<ConnectionLease>();
+        private long acquisitions;
+        private long waitTicks;
+        private long maxWaitTicks;
+
+        public ConnectionPool(string connectionString, int minSize, int maxSize)
+        {
+            if (minSize < 0 || maxSize <= 0 || minSize > maxSize)
+                throw new ArgumentException("pool size has to satisfy 0 <= minSize <= maxSize, maxSize > 0");
+            this.connectionString = connectionString;
+            this.maxSize = maxSize;
+            slots = new SemaphoreSlim(maxSize, maxSize);
+            AcquireTimeout = TimeSpan.FromSeconds(15);
+            StatementCacheSize = 32;
+            LeakThreshold = TimeSpan.MaxValue;
+            for (int i = 0; i < minSize; i++)
+            {
+                idle.Push(Open());
+            }
+        }
+
+        public TimeSpan AcquireTimeout { get; set; }
+        public bool ValidateOnAcquire { get; set; }
+        public int StatementCacheSize { get; set; }
+        // leases held longer than this are reported by FindLeaks, together with the acquiring stack
+        public TimeSpan LeakThreshold { get; set; }
+
+        public int MaxSize
+        {
+            get { return maxSize; }
+        }
+
+        public int Active
+        {
+            get { lock (sync) return active.Count; }
+        }
+
+        public int Idle
+        {
+            get { lock (sync) return idle.Count; }
+        }
+
+        public long Acquisitions
+        {
+            get { return Interlocked.Read(ref acquisitions); }
+        }
+
+        public TimeSpan TotalWaitTime
+        {
+            get { return TimeSpan.FromTicks(Interlocked.Read(ref waitTicks)); }
+        }
+
+        public TimeSpan MaxWaitTime
+        {
+            get { return TimeSpan.FromTicks(Interlocked.Read(ref maxWaitTicks)); }
+        }
+
+        public ConnectionLease Acquire()
+        {
+            Stopwatch waiting = Stopwatch.StartNew();
+            if (slots.Wait(AcquireTimeout) == false)
+            {
+                throw new TimeoutException(string.Format("no connection available within {0}, {1} in use{2}",
+                                                         AcquireTimeout, maxSize, DescribeLeaks()));
+            }
+            RecordWait(waiting.Elapsed.Ticks);
+
+            try
+            {
+                ConnectionLease lease = TakeIdle() ?? Open();
+                lease.AcquiredAt = DateTime.UtcNow;
+                lease.AcquiredBy = LeakThreshold != TimeSpan.MaxValue ? Environment.StackTrace : null;
+                lock (sync)
+                {
+                    active.Add(lease);
+                }
+                return lease;
+            }
+            catch
+            {
+                slots.Release();
+                throw;
+            }
+        }
+
+        public void Release(ConnectionLease lease)
+        {
+            lock (sync)
+            {
+                if (active.Remove(lease) == false)
+                    return;
+                if (lease.Connection.State == ConnectionState.Open)
+                    idle.Push(lease);
+                else
+                    lease.Close();
+            }
+            slots.Release();
+        }
+
+        public IList<string> FindLeaks()
+        {
+            DateTime threshold = LeakThreshold == TimeSpan.MaxValue ? DateTime.MinValue : DateTime.UtcNow - LeakThreshold;
+            lock (sync)
+            {
+                return active.Where(lease => lease.AcquiredAt < threshold)
+                             .Select(lease => string.Format("acquired at {0:O}\n{1}", lease.AcquiredAt, lease.AcquiredBy))
+                             .ToList();
+            }
+        }
+
+        public void Dispose()
+        {
+            lock (sync)
+            {
+                foreach (ConnectionLease lease in idle)
+                {
+                    lease.Close();
+                }
+                idle.Clear();
+            }
+        }
+
+        private ConnectionLease TakeIdle()
+        {
+            while (true)
+            {
+                ConnectionLease lease;
+                lock (sync)
+                {
+                    if (idle.Count == 0)
+                        return null;
+                    lease = idle.Pop();
+                }
+                if (IsValid(lease))
+                    return lease;
+                lease.Close();
+            }
+        }
+
+        private bool IsValid(ConnectionLease lease)
+        {
+            if (lease.Connection.State != ConnectionState.Open)
+                return false;
+            if (ValidateOnAcquire == false)
+                return true;
+            try
+            {
+                using (SqlCommand command = new SqlCommand("SELECT 1", lease.Connection))
+                {
+                    command.ExecuteScalar();
+                }
+                return true;
+            }
+            catch (SqlException)
+            {
+                return false;
+            }
+        }
+
+        private ConnectionLease Open()
+        {
+            SqlConnection connection = new SqlConnection(connectionString);
+            connection.Open();
+            return new ConnectionLease(connection, StatementCacheSize);
+        }
+
+        private void RecordWait(long ticks)
+        {
+            Interlocked.Increment(ref acquisitions);
+            Interlocked.Add(ref waitTicks, ticks);
+            long max = Interlocked.Read(ref maxWaitTicks);
+            while (ticks > max)
+            {
+                long previous = Interlocked.CompareExchange(ref maxWaitTicks, ticks, max);
+                if (previous == max)
+                    break;
+                max = previous;
+            }
+        }
+
+        private string DescribeLeaks()
+        {
+            IList<string> leaks = FindLeaks();
+            return leaks.Count == 0 ? string.Empty : ", possible leaks:\n" + string.Join("\n", leaks);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+﻿using System;
+using System.Data.SqlClient;
+
+namespace OrmExample.Mapping
+{
+    // a new connection per operation, pooling is left to SqlClient; its statement cache only serves the
+    // commands of that one operation, reuse across operations needs ConnectionPool
+    public class DirectConnectionProvider : IConnectionProvider
+    {
+        private const int StatementCacheSize = 8;
+        private readonly string connectionString;
+
+        public DirectConnectionProvider(string connectionString)
+        {
+            this.connectionString = connectionString;
+        }
+
+        public ConnectionLease Acquire()
+        {
+            SqlConnection connection = new SqlConnection(connectionString);
+            connection.Open();
+            return new ConnectionLease(connection, StatementCacheSize) { AcquiredAt = DateTime.UtcNow };
+        }
+
+        public void Release(ConnectionLease lease)
+        {
+            lease.Close();
+        }
+    }
+}
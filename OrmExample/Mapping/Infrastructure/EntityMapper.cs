@@ -1,116 +1,1214 @@
-﻿using System.Collections;
+﻿using System;
+using System.Collections;
 using System.Collections.Generic;
 using System.Data;
 using System.Data.SqlClient;
 using System.Linq;
+using System.Threading;
+using System.Threading.Tasks;
 
 namespace OrmExample.Mapping
 {
     public class EntityMapper : IEntityMapper
     {
         private const string QueryByIdTemplate = "SELECT {0} FROM {1} WHERE Id = @Id";
+        private const string QueryByIdsTemplate = "SELECT {0} FROM {1} WHERE Id IN ({2})";
         private const string GetAllQueryTemplate = "SELECT {0} FROM {1}";
+        private const string PageQueryTemplate = "SELECT TOP (@PageSize) {0} FROM {1}";
+        // the finder's own query becomes a derived table, so its WHERE and ORDER BY need no aliases
+        private const string FetchQueryTemplate = "SELECT {0} FROM ({1}) t{2}";
+        private const string FetchJoinTemplate = " LEFT JOIN {0} {1} ON {1}.Id = t.{2}";
         private const string InsertIntoTemplate = "INSERT INTO {0} ({1}) OUTPUT INSERTED.Id VALUES {2}";
-        private const string UpdateQueryTemplate = "UPDATE {0} SET {1} WHERE Id = @Id";
-        private const string DeleteTemplate = "DELETE FROM {0} WHERE Id = @Id";
+        private const string InsertWithIdTemplate = "INSERT INTO {0} ({1}) VALUES {2}";
+        private const string UpdateQueryTemplate = "UPDATE {0} SET {1} WHERE Id = @Id{2}";
+        private const string VersionedUpdateTemplate = "UPDATE {0} SET {1}, {3} = {3} + 1 WHERE Id = @Id{2} AND {3} = @{3}{2}";
+        private const string DeleteTemplate = "DELETE FROM {0} WHERE Id = @Id{1}";
+        private const string VersionedDeleteTemplate = "DELETE FROM {0} WHERE Id = @Id{1} AND {2} = @{2}{1}";
+        private const string LinkInsertTemplate = "INSERT INTO {0} ({1}, {2}) VALUES (@Owner{3}, @Target{3})";
+        private const string LinkDeleteTemplate = "DELETE FROM {0} WHERE {1} = @Owner{3} AND {2} = @Target{3}";
+        private const string LinkClearTemplate = "DELETE FROM {0} WHERE {1} = @Owner{3}";
+        private const int InitialVersion = 0;
+        // no cache generation ever has it, rows read at an unknown time are not cached
+        private const long UnknownGeneration = -1;
 
+        // guards identityMap and snapshots, async loads materialize on pool threads
+        private readonly object sync = new object();
         private readonly Dictionary<int, IEntity> identityMap = new Dictionary<int, IEntity>();
-        private readonly string connectionString;
+        // values written or read last, in ModifyParameters order, so an update only sets the columns that changed
+        private readonly Dictionary<int, object[]> snapshots = new Dictionary<int, object[]>();
+        // version each registered entity was read or last written with, only for versioned mappings
+        private readonly Dictionary<int, int> versions = new Dictionary<int, int>();
+        // target ids of the link rows per link table and owner, as loaded or last written; an owner
+        // without an entry never had its collection read, there is nothing to diff it against
+        private readonly Dictionary<string, Dictionary<int, HashSet<int>>> links = new Dictionary<string, Dictionary<int, HashSet<int>>>();
+        // deleted in a batch, taken out of the resident table once the commit invalidates them
+        private readonly HashSet<int> pendingRemovals = new HashSet<int>();
+        // UPDATE text per changed column set and batch suffix
+        private readonly Dictionary<string, string> updateStatements = new Dictionary<string, string>();
+        private readonly IConnectionProvider connections;
+        private readonly bool bindToUnitOfWork;
         private readonly IMapping mapping;
+        private readonly IAssociatingMapping associatingMapping;
+        private readonly IList<IAssociationMapping> associations;
+        private readonly SecondLevelCache cache;
+        private readonly QueryCache queryCache;
+        private readonly ResidentTable resident;
+        private readonly string[] rowNames;
+        private readonly string versionColumn;
+        private readonly int versionOrdinal;
+        private readonly IKeyGenerator keyGenerator;
+        private readonly IPersistenceListener listener;
+        private readonly SemaphoreSlim queryThrottle;
+        private readonly int batchFetchSize;
+        // statement text depends only on the mapping, it is built once instead of on every call
+        private readonly string queryById;
+        private readonly string getAllQuery;
+        private readonly string pageQuery;
+        private readonly string insertIntoQuery;
+        private readonly string deleteQuery;
 
         public EntityMapper(string connectionString, IMapping mapping)
+            : this(new MappingConfiguration(connectionString), mapping)
         {
-            this.connectionString = connectionString;
+        }
+
+        public EntityMapper(MappingConfiguration configuration, IMapping mapping)
+        {
+            connections = configuration.ConnectionProvider;
+            bindToUnitOfWork = configuration.BindConnectionToUnitOfWork;
+            cache = configuration.SecondLevelCache;
+            queryCache = configuration.QueryCache;
+            resident = configuration.GetResidentTable(mapping.TableName);
+            keyGenerator = configuration.GetKeyGenerator(mapping.TableName);
+            listener = configuration.PersistenceListener;
+            queryThrottle = configuration.QueryThrottle;
+            batchFetchSize = configuration.BatchFetchSize;
             this.mapping = mapping;
+            associatingMapping = mapping as IAssociatingMapping;
+            associations = associatingMapping != null ? associatingMapping.Associations : new IAssociationMapping[0];
+            IVersionedMapping versionedMapping = mapping as IVersionedMapping;
+            versionColumn = versionedMapping != null ? versionedMapping.VersionColumn : null;
+            // selected after Id and Columns
+            versionOrdinal = mapping.Columns.Length + 1;
+            queryById = string.Format(QueryByIdTemplate, BuildColumnsWithId(), mapping.TableName);
+            getAllQuery = string.Format(GetAllQueryTemplate, BuildColumnsWithId(), mapping.TableName);
+            pageQuery = string.Format(PageQueryTemplate, BuildColumnsWithId(), mapping.TableName);
+            insertIntoQuery = BuildInsert(string.Empty);
+            deleteQuery = string.Format(DeleteTemplate, mapping.TableName, string.Empty);
+            rowNames = SelectedColumns(mapping);
         }
 
 
+        public IMapping Mapping
+        {
+            get { return mapping; }
+        }
+
         public IEntity GetById(int id)
         {
-            if (identityMap.ContainsKey(id))
-                return identityMap[id];
+            IEntity loaded;
+            if (TryGetLoaded(id, out loaded))
+                return loaded;
 
-            SqlConnection connection = new SqlConnection(connectionString);
-            connection.Open();
-            string queryById = string.Format(QueryByIdTemplate, BuildColumnsWithId(), mapping.TableName);
-            SqlCommand command = new SqlCommand(queryById, connection);
-            command.Parameters.Add(new SqlParameter("Id", id));
-            using (SqlDataReader dataReader = command.ExecuteReader(CommandBehavior.CloseConnection))
+            CachedRow cachedRow;
+            if (cache != null && cache.TryGet(mapping.TableName, id, out cachedRow))
+                return Loaded(MaterializeCached(id, cachedRow));
+            if (TryGetResident(id, out cachedRow))
+                return Loaded(MaterializeCached(id, cachedRow));
+
+            long generation = CacheGeneration();
+            List<CachedRow> rows;
+            ConnectionLease lease = connections.Acquire();
+            try
             {
-                dataReader.Read();
-                IEntity entity = mapping.Load(id, dataReader);
-                identityMap[id] = entity;
-                return entity;
+                SqlCommand command = lease.Statements.Prepare(queryById, null);
+                command.Parameters.Add(new SqlParameter("Id", id));
+                rows = ReadRows(command, id);
+            }
+            finally
+            {
+                connections.Release(lease);
+            }
+            // mapped once the connection is free, loading references may need it again
+            return Loaded(Materialize(id, rows.Single(), true, generation));
+        }
+
+        // own pooled connection per call, at most MaxConcurrentQueries of them per configuration;
+        // the caller's unit of work and mappers are kept for the mapping after the await
+        public async Task<IEntity> GetByIdAsync(int id)
+        {
+            IEntity loaded;
+            if (TryGetLoaded(id, out loaded))
+                return loaded;
+
+            CachedRow cachedRow;
+            if (cache != null && cache.TryGet(mapping.TableName, id, out cachedRow))
+                return Loaded(MaterializeCached(id, cachedRow));
+            if (TryGetResident(id, out cachedRow))
+                return Loaded(MaterializeCached(id, cachedRow));
+
+            using (UnitOfWorkScope.Capture())
+            {
+                long generation = CacheGeneration();
+                List<CachedRow> rows = await ReadRowsAsync(queryById, new[] { new SqlParameter("Id", id) }, id).ConfigureAwait(false);
+                return Loaded(Materialize(id, rows.Single(), true, generation));
+            }
+        }
+
+        public async Task<IList<IEntity>> FindManyAsync(StatementSource source)
+        {
+            IList<CachedRow> residentRows;
+            if (TryFindResident(source, out residentRows))
+                return LoadRows(residentRows);
+
+            string query = BuildQuery(source);
+            int[] ids;
+            if (queryCache != null && queryCache.TryGet(query, source.Parameters, out ids))
+                return GetByIds(ids).Cast<IEntity>().ToList();
+
+            using (UnitOfWorkScope.Capture())
+            {
+                long generation = queryCache != null ? queryCache.Generation : 0;
+                long cacheGeneration = CacheGeneration();
+                List<CachedRow> rows = await ReadRowsAsync(query, BuildParameters(source), null).ConfigureAwait(false);
+                IList<IEntity> entities = LoadRows(LoadFetched(rows, Fetches(source)), cacheGeneration, true);
+                PutQuery(query, source, entities, generation);
+                return entities;
             }
         }
 
         public IEnumerable GetAll()
         {
-            SqlConnection connection = new SqlConnection(connectionString);
-            connection.Open();
-            string getAllQuery = string.Format(GetAllQueryTemplate, BuildColumnsWithId(), mapping.TableName);
-            SqlCommand command = new SqlCommand(getAllQuery, connection);
+            return FindMany(new StatementSource());
+        }
+
+        public IEnumerable FindMany(StatementSource source)
+        {
+            IList<CachedRow> residentRows;
+            if (TryFindResident(source, out residentRows))
+                return LoadRows(residentRows);
+
+            string query = BuildQuery(source);
+            int[] ids;
+            if (queryCache != null && queryCache.TryGet(query, source.Parameters, out ids))
+                return GetByIds(ids);
+
+            long generation = queryCache != null ? queryCache.Generation : 0;
             ArrayList entities = new ArrayList();
-            using (SqlDataReader dataReader = command.ExecuteReader(CommandBehavior.CloseConnection))
+            foreach (IEntity entity in Stream(source, true))
             {
-                while (dataReader.Read())
+                entities.Add(entity);
+            }
+            PutQuery(query, source, entities.Cast<IEntity>(), generation);
+            return entities;
+        }
+
+        // rows are mapped one by one as the caller enumerates, the reader and connection are closed
+        // when the enumeration ends or is disposed; without registration nothing keeps the entities alive
+        public IEnumerable<IEntity> Stream(StatementSource source, bool registerInIdentityMap)
+        {
+            IReferencingMapping referencingMapping = mapping as IReferencingMapping;
+            IList<FetchedReference> fetches = Fetches(source);
+            List<CachedRow> pending = new List<CachedRow>();
+            long generation = CacheGeneration();
+            // never the unit of work connection, it stays busy for as long as the caller enumerates
+            ConnectionLease lease = connections.Acquire();
+            try
+            {
+                SqlCommand command = CreateCommand(source, lease.Statements);
+                // includes the time the caller spends between rows
+                long started = listener != null ? Timestamp.Now() : 0;
+                int rowCount = 0;
+                using (SqlDataReader dataReader = command.ExecuteReader())
                 {
-                    int id = (int)dataReader["Id"];
-                    IEntity entity;
-                    if (identityMap.ContainsKey(id))
+                    // typed read by ordinal, the name indexer looks the column up and boxes the key on every row
+                    int idOrdinal = dataReader.GetOrdinal("Id");
+                    while (dataReader.Read())
+                    {
+                        rowCount++;
+                        if (referencingMapping == null && fetches.Count == 0)
+                        {
+                            yield return Materialize(dataReader.GetInt32(idOrdinal), dataReader, registerInIdentityMap, generation);
+                            continue;
+                        }
+                        // rows are detached in chunks so that referenced entities can be fetched in batches
+                        // instead of one query per row from inside Load
+                        pending.Add(CachedRow.From(dataReader));
+                        if (pending.Count < batchFetchSize)
+                            continue;
+                        foreach (IEntity entity in MaterializeAll(referencingMapping, LoadFetched(pending, fetches), registerInIdentityMap, generation))
+                        {
+                            yield return entity;
+                        }
+                        pending.Clear();
+                    }
+                }
+                Executed(command.CommandText, null, started, rowCount);
+            }
+            finally
+            {
+                connections.Release(lease);
+            }
+            foreach (IEntity entity in MaterializeAll(referencingMapping, LoadFetched(pending, fetches), registerInIdentityMap, generation))
+            {
+                yield return entity;
+            }
+            ResultSetLoaded();
+        }
+
+        // for reports over many rows: Id and the given columns only, stored per column; no entity is created and
+        // neither the identity map, the caches nor the unit of work are touched
+        public ColumnarResult Project(StatementSource source, params string[] columns)
+        {
+            foreach (string column in columns)
+            {
+                if (mapping.Columns.Contains(column, StringComparer.OrdinalIgnoreCase) == false)
+                    throw new ArgumentException("only mapped columns can be projected, not " + column, "columns");
+            }
+            if (source.FetchedReferences.Any())
+                throw new ArgumentException("a projection reads a single table, references cannot be fetched", "source");
+            string query = string.Format(GetAllQueryTemplate, string.Join(", ", new[] { "Id" }.Concat(columns)), mapping.TableName);
+            if (string.IsNullOrEmpty(source.Where) == false)
+                query += " WHERE " + source.Where;
+            if (source.OrderByColumn != null)
+                query += OrderByClause(source.OrderByColumn, source.Descending, string.Empty);
+
+            // never the unit of work connection, a projection is not part of it
+            ConnectionLease lease = connections.Acquire();
+            try
+            {
+                SqlCommand command = lease.Statements.Prepare(query, null);
+                command.Parameters.AddRange(BuildParameters(source));
+                long started = listener != null ? Timestamp.Now() : 0;
+                ColumnarResult result;
+                using (SqlDataReader dataReader = command.ExecuteReader())
+                {
+                    result = new ColumnarResult(dataReader);
+                    while (dataReader.Read())
                     {
-                        entity = identityMap[id];
+                        result.Append(dataReader);
                     }
-                    else
+                }
+                Executed(query, null, started, result.Count);
+                return result;
+            }
+            finally
+            {
+                connections.Release(lease);
+            }
+        }
+
+        // seeks past the last row of the previous page instead of skipping rows with OFFSET,
+        // so a deep page costs as much as the first one; registered pages stay in the identity map
+        // after the next one is read, walk a large table without registration as with Stream
+        public Page<IEntity> GetPage(StatementSource source, int pageSize, string continuationToken, bool registerInIdentityMap)
+        {
+            if (pageSize <= 0)
+                throw new ArgumentOutOfRangeException("pageSize", "a page has to hold at least one row");
+            string column = source.OrderByColumn ?? "Id";
+            if (column != "Id" && mapping.Columns.Contains(column, StringComparer.OrdinalIgnoreCase) == false)
+                throw new ArgumentException("pages can only be ordered by a mapped column, not " + column, "source");
+            PageToken after = continuationToken != null ? PageToken.Decode(continuationToken, column) : null;
+            IList<FetchedReference> fetches = Fetches(source);
+
+            List<string> conditions = new List<string>();
+            if (string.IsNullOrEmpty(source.Where) == false)
+                conditions.Add("(" + source.Where + ")");
+            if (after != null)
+                conditions.Add(column == "Id"
+                                   ? string.Format("Id {0} @AfterId", source.Descending ? "<" : ">")
+                                   : string.Format("({0} {1} @AfterKey OR ({0} = @AfterKey AND Id {1} @AfterId))", column, source.Descending ? "<" : ">"));
+            string query = pageQuery;
+            if (conditions.Count > 0)
+                query += " WHERE " + string.Join(" AND ", conditions);
+            query += OrderByClause(column, source.Descending, string.Empty);
+            if (fetches.Count > 0)
+                query = FetchQuery(query, fetches) + OrderByClause(column, source.Descending, "t.");
+
+            long generation = CacheGeneration();
+            List<CachedRow> rows;
+            ConnectionLease lease = connections.Acquire();
+            try
+            {
+                SqlCommand command = lease.Statements.Prepare(query, null);
+                command.Parameters.AddRange(BuildParameters(source));
+                // one row more than asked for tells whether another page follows
+                command.Parameters.Add(new SqlParameter("PageSize", pageSize + 1));
+                if (after != null)
+                {
+                    command.Parameters.Add(new SqlParameter("AfterId", after.Id));
+                    if (column != "Id")
+                        command.Parameters.Add(new SqlParameter("AfterKey", after.SortKey));
+                }
+                rows = LoadFetched(ReadRows(command, null), fetches);
+            }
+            finally
+            {
+                connections.Release(lease);
+            }
+
+            string nextToken = null;
+            if (rows.Count > pageSize)
+            {
+                rows.RemoveAt(pageSize);
+                CachedRow last = rows[pageSize - 1];
+                nextToken = new PageToken(column, last[column], last.GetInt32(0)).Encode();
+            }
+            return new Page<IEntity>(LoadRows(rows, generation, registerInIdentityMap), nextToken);
+        }
+
+        public IEnumerable GetByIds(IEnumerable<int> ids)
+        {
+            int[] requested = ids.Distinct().ToArray();
+            List<int> missing = new List<int>();
+            List<CachedRow> cachedRows = new List<CachedRow>();
+            foreach (int id in requested)
+            {
+                IEntity loaded;
+                CachedRow cachedRow;
+                if (TryGetLoaded(id, out loaded))
+                    continue;
+                if (cache != null && cache.TryGet(mapping.TableName, id, out cachedRow))
+                    cachedRows.Add(cachedRow);
+                else if (TryGetResident(id, out cachedRow))
+                    cachedRows.Add(cachedRow);
+                else
+                    missing.Add(id);
+            }
+
+            long generation = CacheGeneration();
+            List<CachedRow> rows = new List<CachedRow>();
+            if (missing.Count > 0)
+            {
+                ConnectionLease lease = connections.Acquire();
+                try
+                {
+                    for (int offset = 0; offset < missing.Count; offset += batchFetchSize)
                     {
-                        entity = mapping.Load(id, dataReader);
-                        identityMap.Add(id, entity);
+                        int[] chunk = missing.Skip(offset).Take(batchFetchSize).ToArray();
+                        string parameterNames = string.Join(", ", chunk.Select((id, i) => "@Id_" + i));
+                        string queryByIds = string.Format(QueryByIdsTemplate, BuildColumnsWithId(), mapping.TableName, parameterNames);
+                        SqlCommand command = lease.Statements.Prepare(queryByIds, null);
+                        command.Parameters.AddRange(chunk.Select((id, i) => new SqlParameter("Id_" + i, id)).ToArray());
+                        rows.AddRange(ReadRows(command, null));
                     }
-                    entities.Add(entity);
+                }
+                finally
+                {
+                    connections.Release(lease);
+                }
+            }
+            // references of cached and read rows alike are fetched together, not one GetById per row from inside Load
+            IReferencingMapping referencingMapping = mapping as IReferencingMapping;
+            if (referencingMapping != null && cachedRows.Count + rows.Count > 0)
+                PrefetchReferences(referencingMapping, cachedRows.Concat(rows).ToList());
+            foreach (CachedRow row in cachedRows)
+            {
+                MaterializeCached(row.GetInt32(0), row);
+            }
+            foreach (CachedRow row in rows)
+            {
+                Materialize(row.GetInt32(0), row, true, generation);
+            }
+            ResultSetLoaded();
+
+            ArrayList entities = new ArrayList();
+            lock (sync)
+            {
+                foreach (int id in requested)
+                {
+                    IEntity entity;
+                    if (identityMap.TryGetValue(id, out entity))
+                        entities.Add(entity);
                 }
             }
             return entities;
         }
 
+        // rows read elsewhere (e.g. joined with a link table), the Id column has to come first;
+        // when they were read is not known, so they are not put in the second level cache
+        public IList<IEntity> LoadRows(IList<CachedRow> rows)
+        {
+            return LoadRows(rows, UnknownGeneration, true);
+        }
+
+        private IList<IEntity> LoadRows(IList<CachedRow> rows, long generation, bool register)
+        {
+            IReferencingMapping referencingMapping = mapping as IReferencingMapping;
+            if (referencingMapping != null)
+                return Loaded(MaterializeAll(referencingMapping, rows, register, generation));
+            return Loaded(rows.Select(row => Materialize(row.GetInt32(0), row, register, generation)).ToList());
+        }
+
+        // every entity of a result set is mapped, e.g. the associations of all of them can now be read together
+        private void ResultSetLoaded()
+        {
+            if (associatingMapping != null)
+                associatingMapping.ResultSetLoaded();
+        }
+
+        private T Loaded<T>(T result)
+        {
+            ResultSetLoaded();
+            return result;
+        }
+
+        private SqlCommand CreateCommand(StatementSource source, StatementCache statements)
+        {
+            SqlCommand command = statements.Prepare(BuildQuery(source), null);
+            command.Parameters.AddRange(BuildParameters(source));
+            return command;
+        }
+
+        private string BuildQuery(StatementSource source)
+        {
+            string query = getAllQuery;
+            if (string.IsNullOrEmpty(source.Where) == false)
+                query += " WHERE " + source.Where;
+            IList<FetchedReference> fetches = Fetches(source);
+            string alias = string.Empty;
+            if (fetches.Count > 0)
+            {
+                query = FetchQuery(query, fetches);
+                alias = "t.";
+            }
+            if (source.OrderByColumn != null)
+                query += OrderByClause(source.OrderByColumn, source.Descending, alias);
+            return query;
+        }
+
+        private static string OrderByClause(string column, bool descending, string alias)
+        {
+            string direction = descending ? " DESC" : string.Empty;
+            if (column == "Id")
+                return " ORDER BY " + alias + "Id" + direction;
+            return " ORDER BY " + alias + column + direction + ", " + alias + "Id" + direction;
+        }
+
+        // the mapped columns come first under their own names, so a joined row loads like any other;
+        // each referenced table follows under its alias
+        private string FetchQuery(string query, IList<FetchedReference> fetches)
+        {
+            IEnumerable<string> columns = rowNames.Select(column => "t." + column);
+            string joins = string.Empty;
+            foreach (FetchedReference fetch in fetches)
+            {
+                FetchedReference reference = fetch;
+                columns = columns.Concat(reference.Columns.Select(column => string.Format("{0}.{1} AS {0}_{1}", reference.Alias, column)));
+                joins += string.Format(FetchJoinTemplate, reference.Mapper.Mapping.TableName, reference.Alias, reference.ForeignKey);
+            }
+            return string.Format(FetchQueryTemplate, string.Join(", ", columns), query, joins);
+        }
+
+        private IList<FetchedReference> Fetches(StatementSource source)
+        {
+            List<FetchedReference> fetches = new List<FetchedReference>();
+            IReferencingMapping referencingMapping = mapping as IReferencingMapping;
+            foreach (string column in source.FetchedReferences)
+            {
+                Type referencedType;
+                if (referencingMapping == null || referencingMapping.References.TryGetValue(column, out referencedType) == false)
+                    throw new ArgumentException(column + " is not a reference of " + mapping.TableName, "source");
+                fetches.Add(new FetchedReference(column, "r" + fetches.Count, MapperRegistry.GetMapper(referencedType)));
+            }
+            return fetches;
+        }
+
+        // maps the referenced side of joined rows and returns the rows of this mapping alone
+        private IList<CachedRow> LoadFetched(IList<CachedRow> rows, IList<FetchedReference> fetches)
+        {
+            if (fetches.Count == 0 || rows.Count == 0)
+                return rows;
+            int offset = rowNames.Length;
+            foreach (FetchedReference fetch in fetches)
+            {
+                List<CachedRow> referenced = new List<CachedRow>();
+                HashSet<int> seen = new HashSet<int>();
+                foreach (CachedRow row in rows)
+                {
+                    // NULL reference or one that many rows share, it is mapped once
+                    if (row.IsDBNull(offset) || seen.Add(row.GetInt32(offset)) == false)
+                        continue;
+                    referenced.Add(Slice(row, fetch.Columns, offset));
+                }
+                fetch.Mapper.LoadRows(referenced);
+                offset += fetch.Columns.Length;
+            }
+            return rows.Select(row => Slice(row, rowNames, 0)).ToList();
+        }
+
+        private static CachedRow Slice(CachedRow row, string[] names, int offset)
+        {
+            object[] values = new object[names.Length];
+            for (int i = 0; i < values.Length; i++)
+            {
+                values[i] = row[offset + i];
+            }
+            return new CachedRow(names, values);
+        }
+
+        private static SqlParameter[] BuildParameters(StatementSource source)
+        {
+            return source.Parameters
+                         .Select(parameter => new SqlParameter(parameter.Key, parameter.Value ?? DBNull.Value))
+                         .ToArray();
+        }
+
+        private List<CachedRow> ReadRows(SqlCommand command, object key)
+        {
+            long started = listener != null ? Timestamp.Now() : 0;
+            List<CachedRow> rows = new List<CachedRow>();
+            using (SqlDataReader dataReader = command.ExecuteReader())
+            {
+                while (dataReader.Read())
+                {
+                    rows.Add(CachedRow.From(dataReader));
+                }
+            }
+            Executed(command.CommandText, key, started, rows.Count);
+            return rows;
+        }
+
+        private async Task<List<CachedRow>> ReadRowsAsync(string sql, SqlParameter[] parameters, object key)
+        {
+            await queryThrottle.WaitAsync().ConfigureAwait(false);
+            try
+            {
+                ConnectionLease lease = connections.Acquire();
+                try
+                {
+                    SqlCommand command = lease.Statements.Prepare(sql, null);
+                    command.Parameters.AddRange(parameters);
+                    long started = listener != null ? Timestamp.Now() : 0;
+                    List<CachedRow> rows = new List<CachedRow>();
+                    using (SqlDataReader dataReader = await command.ExecuteReaderAsync().ConfigureAwait(false))
+                    {
+                        while (await dataReader.ReadAsync().ConfigureAwait(false))
+                        {
+                            rows.Add(CachedRow.From(dataReader));
+                        }
+                    }
+                    Executed(sql, key, started, rows.Count);
+                    return rows;
+                }
+                finally
+                {
+                    connections.Release(lease);
+                }
+            }
+            finally
+            {
+                queryThrottle.Release();
+            }
+        }
+
+        private void Executed(string sql, object key, long started, int rows)
+        {
+            if (listener != null)
+                listener.StatementExecuted(mapping.TableName, sql, key, Timestamp.ElapsedSince(started), rows);
+        }
+
+        private bool TryGetLoaded(int id, out IEntity entity)
+        {
+            bool hit;
+            lock (sync)
+            {
+                hit = identityMap.TryGetValue(id, out entity);
+            }
+            if (listener != null)
+                listener.IdentityMapLookup(mapping.TableName, hit);
+            return hit;
+        }
+
+        // loaded outside the lock: Load may read referenced entities through other mappers and RegisterClean
+        // takes the unit of work lock, which a commit holds while it takes mapper locks
+        private IEntity Materialize(int id, IDataRecord record, bool register, long generation)
+        {
+            IEntity entity;
+            lock (sync)
+            {
+                if (identityMap.TryGetValue(id, out entity))
+                    return entity;
+            }
+            if (register == false)
+                return LoadDetached(id, record);
+            PutInCache(id, record, generation);
+            return AddLoaded(id, LoadDetached(id, record), record);
+        }
+
+        private IEntity MaterializeCached(int id, CachedRow row)
+        {
+            IEntity entity;
+            lock (sync)
+            {
+                if (identityMap.TryGetValue(id, out entity))
+                    return entity;
+            }
+            return AddLoaded(id, LoadDetached(id, row), row);
+        }
+
+        // concurrent loads of one id end with the same instance, the first one added wins
+        private IEntity AddLoaded(int id, IEntity entity, IDataRecord record)
+        {
+            lock (sync)
+            {
+                IEntity existing;
+                if (identityMap.TryGetValue(id, out existing))
+                    return existing;
+                identityMap.Add(id, entity);
+                TakeSnapshot(entity);
+                if (versionColumn != null)
+                    versions[id] = record.GetInt32(versionOrdinal);
+                return entity;
+            }
+        }
+
+        private IEntity LoadDetached(int id, IDataRecord record)
+        {
+            IEntity entity = mapping.Load(id, record);
+            if (listener != null)
+                listener.EntityMapped(mapping.TableName);
+            // mappings go through property setters which mark the entity dirty, a freshly read entity is clean
+            UnitOfWork.Current.RegisterClean(entity);
+            return entity;
+        }
+
+        private List<IEntity> MaterializeAll(IReferencingMapping referencingMapping, IList<CachedRow> rows, bool register, long generation)
+        {
+            if (rows.Count == 0)
+                return new List<IEntity>();
+            PrefetchReferences(referencingMapping, rows);
+            return rows.Select(row => Materialize(row.GetInt32(0), row, register, generation)).ToList();
+        }
+
+        private static void PrefetchReferences(IReferencingMapping referencingMapping, IList<CachedRow> rows)
+        {
+            foreach (KeyValuePair<string, Type> reference in referencingMapping.References)
+            {
+                int ordinal = rows[0].GetOrdinal(reference.Key);
+                IEnumerable<int> keys = rows.Where(row => row.IsDBNull(ordinal) == false)
+                                            .Select(row => row.GetInt32(ordinal));
+                MapperRegistry.GetMapper(reference.Value).GetByIds(keys);
+            }
+        }
+
         public void Insert(IEntity entity)
         {
-            SqlConnection connection = new SqlConnection(connectionString);
-            connection.Open();
-            string insertIntoQuery = string.Format(InsertIntoTemplate, mapping.TableName, BuildColumnsNoId(), BuildValues());
-            SqlCommand command = new SqlCommand(insertIntoQuery, connection);
-            command.Parameters.AddRange(mapping.ModifyParameters(entity));
-            entity.Id = (int)command.ExecuteScalar();
-            identityMap.Add(entity.Id, entity);
-            connection.Close();
+            ConnectionLease lease = AcquireConnection();
+            try
+            {
+                SqlCommand command = lease.Statements.Prepare(insertIntoQuery, null);
+                long started = listener != null ? Timestamp.Now() : 0;
+                if (keyGenerator != null)
+                {
+                    entity.Id = keyGenerator.NextKey(mapping.TableName);
+                    command.Parameters.Add(new SqlParameter("Id", entity.Id));
+                    command.Parameters.AddRange(mapping.ModifyParameters(entity));
+                    command.ExecuteNonQuery();
+                }
+                else
+                {
+                    command.Parameters.AddRange(mapping.ModifyParameters(entity));
+                    entity.Id = (int)command.ExecuteScalar();
+                }
+                Executed(insertIntoQuery, null, started, 1);
+                Attach(entity);
+                Invalidate(entity);
+            }
+            finally
+            {
+                ReleaseConnection(lease);
+            }
         }
 
         public void Update(IEntity entity)
         {
-            SqlConnection connection = new SqlConnection(connectionString);
-            connection.Open();
-            string updateQuery = string.Format(UpdateQueryTemplate, mapping.TableName, BuildSet());
-            SqlCommand command = new SqlCommand(updateQuery, connection);
-            command.Parameters.Add(new SqlParameter("Id", entity.Id));
-            command.Parameters.AddRange(mapping.ModifyParameters(entity));
-            command.ExecuteNonQuery();
-            connection.Close();
+            ConnectionLease lease = AcquireConnection();
+            try
+            {
+                SqlParameter[] parameters = mapping.ModifyParameters(entity);
+                SqlParameter[] changed = ChangedParameters(entity, parameters);
+                if (changed.Length == 0)
+                    return;
+                object[] written = parameters.Select(parameter => parameter.Value).ToArray();
+                int? version = ExpectedVersion(entity.Id);
+                SqlCommand command = lease.Statements.Prepare(GetUpdateStatement(changed, string.Empty, version.HasValue), null);
+                command.Parameters.Add(new SqlParameter("Id", entity.Id));
+                command.Parameters.AddRange(changed);
+                if (version.HasValue)
+                    command.Parameters.Add(new SqlParameter(versionColumn, version.Value));
+                long started = listener != null ? Timestamp.Now() : 0;
+                int updated = command.ExecuteNonQuery();
+                Executed(command.CommandText, null, started, updated);
+                if (version.HasValue && updated == 0)
+                    throw new OptimisticConcurrencyException(new[] { entity });
+                Written(entity.Id, written, version);
+                Invalidate(entity);
+            }
+            finally
+            {
+                ReleaseConnection(lease);
+            }
         }
 
         public void DeleteById(int id)
         {
-            SqlConnection connection = new SqlConnection(connectionString);
-            connection.Open();
-            string deleteQuery = string.Format(DeleteTemplate, mapping.TableName);
-            SqlCommand command = new SqlCommand(deleteQuery, connection);
-            command.Parameters.Add(new SqlParameter("Id", id));
-            command.ExecuteNonQuery();
-            identityMap.Remove(id);
-            connection.Close();
+            ConnectionLease lease = AcquireConnection();
+            try
+            {
+                int? version = ExpectedVersion(id);
+                string query = version.HasValue
+                                   ? string.Format(VersionedDeleteTemplate, mapping.TableName, string.Empty, versionColumn)
+                                   : deleteQuery;
+                SqlCommand command = lease.Statements.Prepare(query, null);
+                command.Parameters.Add(new SqlParameter("Id", id));
+                if (version.HasValue)
+                    command.Parameters.Add(new SqlParameter(versionColumn, version.Value));
+                long started = listener != null ? Timestamp.Now() : 0;
+                int deleted = command.ExecuteNonQuery();
+                Executed(query, null, started, deleted);
+                // a known version means the entity is registered
+                if (version.HasValue && deleted == 0)
+                    throw new OptimisticConcurrencyException(new[] { GetById(id) });
+                Detach(id);
+                InvalidateCached(id);
+                if (resident != null)
+                    resident.Remove(id);
+            }
+            finally
+            {
+                ReleaseConnection(lease);
+            }
+        }
+
+        // for writes, which run inside a commit holding the unit of work lock; reads always take their own
+        // connection, work forked inside a scope shares the unit of work and would share one SqlConnection
+        private ConnectionLease AcquireConnection()
+        {
+            return bindToUnitOfWork ? UnitOfWork.Current.AcquireConnection(connections) : connections.Acquire();
+        }
+
+        private void ReleaseConnection(ConnectionLease lease)
+        {
+            if (bindToUnitOfWork == false)
+                connections.Release(lease);
+        }
+
+        public void AddInsert(SqlBatch batch, IEntity entity)
+        {
+            string suffix = batch.NextSuffix();
+            string statement = BuildInsert(suffix);
+            IEnumerable<SqlParameter> parameters = mapping.ModifyParameters(entity);
+            if (keyGenerator != null)
+            {
+                entity.Id = keyGenerator.NextKey(mapping.TableName);
+                parameters = new[] { new SqlParameter("Id", entity.Id) }.Concat(parameters);
+            }
+            // known by id only once committed, a rolled back row never existed
+            batch.Add(entity, statement, SqlBatch.WithSuffix(parameters, suffix), keyGenerator == null,
+                      null, false, Attach);
+        }
+
+        public void AddUpdate(SqlBatch batch, IEntity entity)
+        {
+            SqlParameter[] parameters = mapping.ModifyParameters(entity);
+            SqlParameter[] changed = ChangedParameters(entity, parameters);
+            // marked dirty but written back with the same values
+            if (changed.Length == 0)
+                return;
+            object[] written = parameters.Select(parameter => parameter.Value).ToArray();
+            int? version = ExpectedVersion(entity.Id);
+            string suffix = batch.NextSuffix();
+            string statement = GetUpdateStatement(changed, suffix, version.HasValue);
+            IEnumerable<SqlParameter> statementParameters = new[] { new SqlParameter("Id", entity.Id) }.Concat(changed);
+            if (version.HasValue)
+                statementParameters = statementParameters.Concat(new[] { new SqlParameter(versionColumn, version.Value) });
+            // the snapshot follows only once committed, a rolled back update is found changed again on retry
+            batch.Add(entity, statement, SqlBatch.WithSuffix(statementParameters.ToArray(), suffix), false,
+                      updated => InvalidateCached(updated.Id),
+                      version.HasValue,
+                      updated => Written(updated.Id, written, version));
+        }
+
+        public void AddDelete(SqlBatch batch, IEntity entity)
+        {
+            int? version = ExpectedVersion(entity.Id);
+            string suffix = batch.NextSuffix();
+            string statement = version.HasValue
+                                   ? string.Format(VersionedDeleteTemplate, mapping.TableName, suffix, versionColumn)
+                                   : string.Format(DeleteTemplate, mapping.TableName, suffix);
+            List<SqlParameter> statementParameters = new List<SqlParameter> { new SqlParameter("Id", entity.Id) };
+            if (version.HasValue)
+                statementParameters.Add(new SqlParameter(versionColumn, version.Value));
+            batch.Add(entity, statement, SqlBatch.WithSuffix(statementParameters, suffix).ToArray(), false,
+                      deleted => InvalidateCached(deleted.Id),
+                      version.HasValue,
+                      deleted =>
+                          {
+                              Detach(deleted.Id);
+                              RemoveOnCommit(deleted.Id);
+                          });
+        }
+
+        // called by AssociationTableLoader whenever it fills an owner's collection
+        public void LinksLoaded(IAssociationMapping association, int ownerId, IEnumerable<int> targetIds)
+        {
+            lock (sync)
+            {
+                OwnerLinks(association.LinkTable)[ownerId] = new HashSet<int>(targetIds);
+            }
+        }
+
+        // only the links added to or removed from loaded collections; a collection replaced without ever being
+        // loaded has nothing to compare with and is rewritten whole, a never loaded one writes nothing;
+        // owners inserted by the same commit are not attached yet and have no links at all
+        public IList<LinkChange> GetLinkChanges(IEnumerable<IEntity> inserted)
+        {
+            List<LinkChange> changes = new List<LinkChange>();
+            lock (sync)
+            {
+                foreach (IAssociationMapping association in associations)
+                {
+                    Dictionary<int, HashSet<int>> owners = OwnerLinks(association.LinkTable);
+                    HashSet<IEntity> newOwners = new HashSet<IEntity>(inserted.Where(association.OwnerType.IsInstanceOfType),
+                                                                      new IdentityComparer<IEntity>());
+                    foreach (IEntity owner in identityMap.Values.Concat(newOwners))
+                    {
+                        IEnumerable<IEntity> targets = association.GetLoaded(owner);
+                        if (targets == null)
+                            continue;
+                        // a target that was never inserted has no key to link to
+                        HashSet<int> current = new HashSet<int>(targets.Select(target => target.Id).Where(id => id != 0));
+                        HashSet<int> loaded;
+                        if (newOwners.Contains(owner))
+                        {
+                            loaded = new HashSet<int>();
+                        }
+                        else if (owners.TryGetValue(owner.Id, out loaded) == false)
+                        {
+                            int ownerId = owner.Id;
+                            changes.Add(CreateLinkChange(LinkClearTemplate, association, owner, null,
+                                                         linked => linked[ownerId] = new HashSet<int>()));
+                            loaded = new HashSet<int>();
+                        }
+                        foreach (int added in current.Where(id => loaded.Contains(id) == false))
+                        {
+                            changes.Add(CreateLinkChange(LinkInsertTemplate, association, owner, added,
+                                                         ChangeLinked(owner.Id, ids => ids.Add(added))));
+                        }
+                        foreach (int removed in loaded.Where(id => current.Contains(id) == false))
+                        {
+                            changes.Add(CreateLinkChange(LinkDeleteTemplate, association, owner, removed,
+                                                         ChangeLinked(owner.Id, ids => ids.Remove(removed))));
+                        }
+                    }
+                }
+            }
+            return changes;
+        }
+
+        // statement by statement, like the rest of a commit without batching
+        public void SaveLinks(IEnumerable<LinkChange> changes)
+        {
+            ConnectionLease lease = AcquireConnection();
+            try
+            {
+                foreach (LinkChange change in changes)
+                {
+                    SqlBatch batch = new SqlBatch();
+                    change.AddTo(batch);
+                    // autocommitted, the loaded links follow right away
+                    foreach (StatementResult result in batch.Execute(lease.Statements, null))
+                    {
+                        result.Committed();
+                    }
+                }
+            }
+            finally
+            {
+                ReleaseConnection(lease);
+            }
+        }
+
+        // the loaded links change only once the statement commits, a rolled back change is found again on retry
+        private LinkChange CreateLinkChange(string template, IAssociationMapping association, IEntity owner, int? targetId,
+                                            Action<Dictionary<int, HashSet<int>>> written)
+        {
+            return new LinkChange(owner, batch =>
+                {
+                    string suffix = batch.NextSuffix();
+                    string statement = string.Format(template, association.LinkTable, association.OwnerColumn, association.TargetColumn, suffix);
+                    List<SqlParameter> parameters = new List<SqlParameter> { new SqlParameter("Owner", owner.Id) };
+                    if (targetId.HasValue)
+                        parameters.Add(new SqlParameter("Target", targetId.Value));
+                    batch.Add(owner, statement, SqlBatch.WithSuffix(parameters, suffix).ToArray(), false,
+                              linked =>
+                                  {
+                                      if (queryCache != null)
+                                          queryCache.InvalidateTable(association.LinkTable);
+                                  },
+                              false,
+                              linked =>
+                                  {
+                                      lock (sync)
+                                      {
+                                          written(OwnerLinks(association.LinkTable));
+                                      }
+                                  });
+                });
+        }
+
+        // an owner deleted in the meantime has no links left to follow
+        private static Action<Dictionary<int, HashSet<int>>> ChangeLinked(int ownerId, Action<HashSet<int>> change)
+        {
+            return owners =>
+                {
+                    HashSet<int> ids;
+                    if (owners.TryGetValue(ownerId, out ids))
+                        change(ids);
+                };
+        }
+
+        private Dictionary<int, HashSet<int>> OwnerLinks(string linkTable)
+        {
+            Dictionary<int, HashSet<int>> owners;
+            if (links.TryGetValue(linkTable, out owners) == false)
+                links.Add(linkTable, owners = new Dictionary<int, HashSet<int>>());
+            return owners;
+        }
+
+        // after a commit, or right after an autocommitted statement
+        public void Invalidate(IEntity entity)
+        {
+            InvalidateCached(entity.Id);
+            if (resident == null)
+                return;
+            bool removed;
+            lock (sync)
+            {
+                removed = pendingRemovals.Remove(entity.Id);
+            }
+            if (removed)
+                resident.Remove(entity.Id);
+            else
+                resident.Put(ResidentRow(entity));
+        }
+
+        private void Attach(IEntity entity)
+        {
+            lock (sync)
+            {
+                identityMap.Add(entity.Id, entity);
+                TakeSnapshot(entity);
+                if (versionColumn != null)
+                    versions[entity.Id] = InitialVersion;
+                // a new owner has no link rows yet, all of its collection is added
+                foreach (IAssociationMapping association in associations)
+                {
+                    OwnerLinks(association.LinkTable)[entity.Id] = new HashSet<int>();
+                }
+            }
+        }
+
+        private void Detach(int id)
+        {
+            lock (sync)
+            {
+                identityMap.Remove(id);
+                snapshots.Remove(id);
+                versions.Remove(id);
+                foreach (Dictionary<int, HashSet<int>> owners in links.Values)
+                {
+                    owners.Remove(id);
+                }
+            }
+        }
+
+        private void TakeSnapshot(IEntity entity)
+        {
+            snapshots[entity.Id] = mapping.ModifyParameters(entity).Select(parameter => parameter.Value).ToArray();
+        }
+
+        private void Written(int id, object[] written, int? version)
+        {
+            lock (sync)
+            {
+                snapshots[id] = written;
+                if (version.HasValue)
+                    versions[id] = version.Value + 1;
+            }
+        }
+
+        // null when unversioned or the entity was never loaded here, it is then written by Id alone
+        private int? ExpectedVersion(int id)
+        {
+            if (versionColumn == null)
+                return null;
+            lock (sync)
+            {
+                int version;
+                return versions.TryGetValue(id, out version) ? version : (int?)null;
+            }
+        }
+
+        // all parameters when nothing was snapshotted, e.g. for an entity this mapper never loaded
+        private SqlParameter[] ChangedParameters(IEntity entity, SqlParameter[] parameters)
+        {
+            object[] snapshot;
+            lock (sync)
+            {
+                if (snapshots.TryGetValue(entity.Id, out snapshot) == false)
+                    return parameters;
+            }
+            return parameters.Where((parameter, i) => Equals(parameter.Value, snapshot[i]) == false).ToArray();
+        }
+
+        private string GetUpdateStatement(SqlParameter[] changed, string suffix, bool versioned)
+        {
+            string[] columns = changed.Select(parameter => parameter.ParameterName.TrimStart('@')).ToArray();
+            string key = string.Join(", ", columns) + suffix + (versioned ? " versioned" : string.Empty);
+            string statement;
+            if (updateStatements.TryGetValue(key, out statement) == false)
+            {
+                statement = versioned
+                                ? string.Format(VersionedUpdateTemplate, mapping.TableName, BuildSet(columns, suffix), suffix, versionColumn)
+                                : string.Format(UpdateQueryTemplate, mapping.TableName, BuildSet(columns, suffix), suffix);
+                updateStatements.Add(key, statement);
+            }
+            return statement;
+        }
+
+        private void InvalidateCached(int id)
+        {
+            if (cache != null)
+                cache.Invalidate(mapping.TableName, id);
+            if (queryCache != null)
+                queryCache.InvalidateTable(mapping.TableName);
+        }
+
+        private void RemoveOnCommit(int id)
+        {
+            if (resident == null)
+                return;
+            lock (sync)
+            {
+                pendingRemovals.Add(id);
+            }
+        }
+
+        private bool TryGetResident(int id, out CachedRow row)
+        {
+            row = null;
+            return resident != null && LoadedResident().TryGet(id, out row);
+        }
+
+        // only ByValue, ByPrefix and unfiltered sources, any other WHERE clause goes to the database
+        private bool TryFindResident(StatementSource source, out IList<CachedRow> rows)
+        {
+            rows = null;
+            if (resident == null)
+                return false;
+            if (source.MatchColumn != null)
+                rows = source.MatchesPrefix
+                           ? LoadedResident().FindPrefix(source.MatchColumn, (string)source.MatchValue)
+                           : LoadedResident().FindEqual(source.MatchColumn, source.MatchValue);
+            else if (string.IsNullOrEmpty(source.Where))
+                rows = LoadedResident().All();
+            else
+                return false;
+
+            string column = source.OrderByColumn ?? "Id";
+            // NULL (DBNull) sorts first, as it does in SQL Server
+            Func<CachedRow, IComparable> key = row => row[column] as IComparable;
+            IOrderedEnumerable<CachedRow> ordered = source.Descending
+                                                        ? rows.OrderByDescending(key).ThenByDescending(row => row.GetInt32(0))
+                                                        : rows.OrderBy(key).ThenBy(row => row.GetInt32(0));
+            rows = ordered.ToList();
+            return true;
+        }
+
+        private ResidentTable LoadedResident()
+        {
+            resident.EnsureLoaded(() =>
+                {
+                    ConnectionLease lease = connections.Acquire();
+                    try
+                    {
+                        return ReadRows(lease.Statements.Prepare(getAllQuery, null), null);
+                    }
+                    finally
+                    {
+                        connections.Release(lease);
+                    }
+                });
+            return resident;
+        }
+
+        // laid out like the rows this mapper reads, Id first and then Columns
+        private CachedRow ResidentRow(IEntity entity)
+        {
+            Dictionary<string, object> values = mapping.ModifyParameters(entity)
+                                                       .ToDictionary(parameter => parameter.ParameterName.TrimStart('@'),
+                                                                     parameter => parameter.Value ?? DBNull.Value,
+                                                                     StringComparer.OrdinalIgnoreCase);
+            object[] row = new object[rowNames.Length];
+            row[0] = entity.Id;
+            for (int i = 1; i <= mapping.Columns.Length; i++)
+            {
+                object value;
+                row[i] = values.TryGetValue(rowNames[i], out value) ? value : DBNull.Value;
+            }
+            if (versionColumn != null)
+                row[versionOrdinal] = ExpectedVersion(entity.Id) ?? InitialVersion;
+            return new CachedRow(rowNames, row);
+        }
+
+        private void PutQuery(string query, StatementSource source, IEnumerable<IEntity> entities, long generation)
+        {
+            if (queryCache != null)
+                queryCache.Put(query, source.Parameters, new[] { mapping.TableName }.Concat(source.JoinedTables),
+                               entities.Select(entity => entity.Id).ToArray(), generation);
+        }
+
+        private void PutInCache(int id, IDataRecord dataRecord, long generation)
+        {
+            if (cache != null && generation != UnknownGeneration)
+                cache.Put(mapping.TableName, id, dataRecord as CachedRow ?? CachedRow.From(dataRecord), generation);
+        }
+
+        // taken before the query runs, see SecondLevelCache.GetGeneration
+        private long CacheGeneration()
+        {
+            return cache != null ? cache.GetGeneration(mapping.TableName) : UnknownGeneration;
+        }
+
+        private string BuildInsert(string suffix)
+        {
+            string columns = BuildColumnsNoId();
+            string values = mapping.Columns.Select(col => "@" + col + suffix).Aggregate((col1, col2) => col1 + ", " + col2);
+            if (versionColumn != null)
+            {
+                columns += ", " + versionColumn;
+                values += ", " + InitialVersion;
+            }
+            if (keyGenerator == null)
+                return string.Format(InsertIntoTemplate, mapping.TableName, columns, "(" + values + ")");
+            return string.Format(InsertWithIdTemplate, mapping.TableName, "Id, " + columns, "(@Id" + suffix + ", " + values + ")");
         }
 
         private string BuildColumnsWithId()
         {
-            return new[] { "Id" }.Concat(mapping.Columns).Aggregate((col1, col2) => col1 + ", " + col2);
+            return string.Join(", ", SelectedColumns(mapping));
+        }
+
+        // what every query of a mapping selects, in this order; rows handed to LoadRows must start the same way
+        internal static string[] SelectedColumns(IMapping mapping)
+        {
+            IVersionedMapping versionedMapping = mapping as IVersionedMapping;
+            IEnumerable<string> columns = new[] { "Id" }.Concat(mapping.Columns);
+            if (versionedMapping != null && versionedMapping.VersionColumn != null)
+                columns = columns.Concat(new[] { versionedMapping.VersionColumn });
+            return columns.ToArray();
         }
 
         private string BuildColumnsNoId()
@@ -118,16 +1216,26 @@ namespace OrmExample.Mapping
             return mapping.Columns.Aggregate((col1, col2) => col1 + ", " + col2);
         }
 
-        private string BuildValues()
+        private static string BuildSet(IEnumerable<string> columns, string suffix)
         {
-            return "(" + mapping.Columns.Select(col => "@" + col).Aggregate((col1, col2) => col1 + ", " + col2) + ")";
+            return columns.Select(col => string.Format("{0} = @{0}{1}", col, suffix))
+                          .Aggregate((col1, col2) => col1 + ", " + col2);
         }
 
-        private string BuildSet()
+        private class FetchedReference
         {
-            return mapping.Columns
-                          .Select(col => string.Format("{0} = @{0}", col))
-                          .Aggregate((col1, col2) => col1 + ", " + col2);
+            public FetchedReference(string foreignKey, string alias, IEntityMapper mapper)
+            {
+                ForeignKey = foreignKey;
+                Alias = alias;
+                Mapper = mapper;
+                Columns = SelectedColumns(mapper.Mapping);
+            }
+
+            public string ForeignKey { get; private set; }
+            public string Alias { get; private set; }
+            public IEntityMapper Mapper { get; private set; }
+            public string[] Columns { get; private set; }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,296 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Data.SqlClient;
+using System.Diagnostics;
+using System.Linq;
+using System.Runtime.ExceptionServices;
+using System.Threading;
+
+namespace OrmExample.Mapping
+{
+    // commits queued by concurrent callers are written by whichever caller finds no group in
+    // progress, in one transaction and on one connection; the others block until their unit is
+    // written, so many small commits share a single log flush
+    public class GroupCommitter
+    {
+        private const string SavePoint = "unit";
+
+        private readonly object sync = new object();
+        private readonly IConnectionProvider connections;
+        private readonly int batchSize;
+        private readonly List<PendingCommit> queue = new List<PendingCommit>();
+        private int maxGroupSize;
+        private bool writing;
+        private long groups;
+        private long committedUnits;
+        private long failedUnits;
+        private int largestGroup;
+
+        public GroupCommitter(IConnectionProvider connections, int batchSize)
+        {
+            if (batchSize <= 0)
+                throw new ArgumentOutOfRangeException("batchSize", "a group is always written in batches");
+            this.connections = connections;
+            this.batchSize = batchSize;
+            Window = TimeSpan.Zero;
+            MaxGroupSize = 64;
+        }
+
+        // how long the writer waits for more commits before it starts; with zero a group holds
+        // whatever queued up while the previous one was being written
+        public TimeSpan Window { get; set; }
+
+        public int MaxGroupSize
+        {
+            get { return maxGroupSize; }
+            set
+            {
+                if (value <= 0)
+                    throw new ArgumentOutOfRangeException("value", "a group holds at least one unit");
+                maxGroupSize = value;
+            }
+        }
+
+        public long Groups
+        {
+            get { lock (sync) return groups; }
+        }
+
+        public long CommittedUnits
+        {
+            get { lock (sync) return committedUnits; }
+        }
+
+        public long FailedUnits
+        {
+            get { lock (sync) return failedUnits; }
+        }
+
+        public int LargestGroup
+        {
+            get { lock (sync) return largestGroup; }
+        }
+
+        // returns once the unit is committed, throws what failed it; other units of the group are not affected
+        public IList<StatementResult> Commit(UnitOfWork unitOfWork)
+        {
+            PendingCommit pending = new PendingCommit(unitOfWork, MapperRegistry.Current);
+            lock (sync)
+            {
+                queue.Add(pending);
+                Monitor.PulseAll(sync);
+            }
+            while (true)
+            {
+                bool writer = false;
+                List<PendingCommit> group = null;
+                try
+                {
+                    lock (sync)
+                    {
+                        while (pending.IsDone == false && writing)
+                        {
+                            Monitor.Wait(sync);
+                        }
+                        if (pending.IsDone)
+                            return pending.Result();
+                        writing = writer = true;
+                        group = CollectGroup();
+                    }
+                    Write(group);
+                }
+                finally
+                {
+                    // whatever failed, the next caller must be able to take over writing
+                    if (writer)
+                    {
+                        lock (sync)
+                        {
+                            if (group != null)
+                                Completed(group);
+                            writing = false;
+                            Monitor.PulseAll(sync);
+                        }
+                    }
+                }
+            }
+        }
+
+        // a unit sharing an object with one already in the group waits for the next group,
+        // so both are applied in queue order as with separate commits
+        private List<PendingCommit> CollectGroup()
+        {
+            Stopwatch waited = Stopwatch.StartNew();
+            while (queue.Count < MaxGroupSize)
+            {
+                TimeSpan remaining = Window - waited.Elapsed;
+                if (remaining <= TimeSpan.Zero)
+                    break;
+                Monitor.Wait(sync, remaining);
+            }
+            List<PendingCommit> group = new List<PendingCommit>();
+            HashSet<IEntity> claimed = new HashSet<IEntity>(new IdentityComparer<IEntity>());
+            foreach (PendingCommit pending in queue)
+            {
+                if (group.Count == MaxGroupSize)
+                    break;
+                IEntity[] registered = pending.UnitOfWork.Registered;
+                if (registered.Any(claimed.Contains))
+                    continue;
+                claimed.UnionWith(registered);
+                group.Add(pending);
+            }
+            queue.RemoveAll(group.Contains);
+            return group;
+        }
+
+        // each unit runs behind a savepoint, a failing unit is rolled back alone; only when the
+        // server dooms the whole transaction does every unit of the group fail
+        private void Write(List<PendingCommit> group)
+        {
+            foreach (PendingCommit pending in group)
+            {
+                Monitor.Enter(pending.UnitOfWork.SyncRoot);
+            }
+            List<PendingCommit> written = new List<PendingCommit>();
+            bool committed = false;
+            try
+            {
+                try
+                {
+                    ConnectionLease lease = connections.Acquire();
+                    try
+                    {
+                        using (SqlTransaction transaction = lease.Connection.BeginTransaction())
+                        {
+                            foreach (PendingCommit pending in group)
+                            {
+                                transaction.Save(SavePoint);
+                                try
+                                {
+                                    using (pending.Enter())
+                                    {
+                                        pending.Succeed(pending.UnitOfWork.WriteChanges(lease.Statements, transaction, batchSize));
+                                    }
+                                    written.Add(pending);
+                                }
+                                catch (BatchException e)
+                                {
+                                    transaction.Rollback(SavePoint);
+                                    pending.UnitOfWork.RolledBack();
+                                    pending.Fail(e);
+                                }
+                                catch (OptimisticConcurrencyException e)
+                                {
+                                    transaction.Rollback(SavePoint);
+                                    pending.UnitOfWork.RolledBack();
+                                    pending.Fail(e);
+                                }
+                            }
+                            transaction.Commit();
+                            committed = true;
+                        }
+                    }
+                    finally
+                    {
+                        connections.Release(lease);
+                    }
+                }
+                catch (Exception e)
+                {
+                    if (committed == false)
+                    {
+                        // the transaction is gone with everything written so far; units rolled back to
+                        // their savepoint have failed already and keep their own error
+                        foreach (PendingCommit pending in group.Where(p => p.Error == null))
+                        {
+                            pending.UnitOfWork.RolledBack();
+                            pending.Fail(e);
+                        }
+                        written.Clear();
+                    }
+                    else
+                    {
+                        Trace.TraceWarning("group commit: releasing the connection failed after the commit: {0}", e.Message);
+                    }
+                }
+                foreach (PendingCommit pending in written)
+                {
+                    try
+                    {
+                        using (pending.Enter())
+                        {
+                            pending.UnitOfWork.Committed(pending.Results);
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        // the rows are written, the keys stay valid
+                        pending.Fail(e);
+                    }
+                }
+            }
+            finally
+            {
+                foreach (PendingCommit pending in group)
+                {
+                    pending.UnitOfWork.ReleaseConnection();
+                    Monitor.Exit(pending.UnitOfWork.SyncRoot);
+                }
+            }
+        }
+
+        private void Completed(List<PendingCommit> group)
+        {
+            foreach (PendingCommit pending in group)
+            {
+                pending.IsDone = true;
+                if (pending.Error == null)
+                    committedUnits++;
+                else
+                    failedUnits++;
+            }
+            groups++;
+            largestGroup = Math.Max(largestGroup, group.Count);
+        }
+
+        private class PendingCommit
+        {
+            // the committing thread's mappers, the writer may be another thread with its own
+            private readonly Dictionary<Type, IEntityMapper> mappers;
+
+            public PendingCommit(UnitOfWork unitOfWork, Dictionary<Type, IEntityMapper> mappers)
+            {
+                UnitOfWork = unitOfWork;
+                this.mappers = mappers;
+            }
+
+            public UnitOfWork UnitOfWork { get; private set; }
+            public IList<StatementResult> Results { get; private set; }
+            public Exception Error { get; private set; }
+            public bool IsDone { get; set; }
+
+            public UnitOfWorkScope Enter()
+            {
+                return UnitOfWorkScope.Borrow(UnitOfWork, mappers);
+            }
+
+            public void Succeed(IList<StatementResult> results)
+            {
+                Results = results;
+            }
+
+            public void Fail(Exception error)
+            {
+                Error = error;
+            }
+
+            public IList<StatementResult> Result()
+            {
+                if (Error != null)
+                    ExceptionDispatchInfo.Capture(Error).Throw();
+                return Results;
+            }
+        }
+    }
+}
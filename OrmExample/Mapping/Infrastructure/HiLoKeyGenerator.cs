@@ -0,0 +1,142 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Data.SqlClient;
+using System.Threading;
+
+namespace OrmExample.Mapping
+{
+    // reserves blockSize keys per round trip (one hi value from the Keys table) and hands them out
+    // from memory, inserts no longer need OUTPUT INSERTED.Id to learn their key
+    public class HiLoKeyGenerator : IKeyGenerator
+    {
+        private const string NextHiQuery =
+            "UPDATE Keys SET NextHi = NextHi + 1 OUTPUT DELETED.NextHi WHERE TableName = @TableName";
+        private const string InsertHiQuery = "INSERT INTO Keys (TableName, NextHi) VALUES (@TableName, 1)";
+        private const int DuplicateKeyError = 2627;
+
+        private readonly IConnectionProvider connections;
+        private readonly int blockSize;
+        private readonly object sync = new object();
+        private readonly Dictionary<string, KeySequence> sequences = new Dictionary<string, KeySequence>(StringComparer.OrdinalIgnoreCase);
+        private long reservations;
+
+        public HiLoKeyGenerator(IConnectionProvider connections, int blockSize)
+        {
+            if (blockSize <= 0)
+                throw new ArgumentException("blockSize has to be positive");
+            this.connections = connections;
+            this.blockSize = blockSize;
+        }
+
+        public int BlockSize
+        {
+            get { return blockSize; }
+        }
+
+        // round trips made to the Keys table
+        public long Reservations
+        {
+            get { return Interlocked.Read(ref reservations); }
+        }
+
+        public int NextKey(string tableName)
+        {
+            KeySequence sequence = GetSequence(tableName);
+            KeyBlock block = sequence.Current;
+            while (true)
+            {
+                // long, so callers racing past the last int key cannot wrap around to negative ones
+                long key = Interlocked.Increment(ref block.Next);
+                if (key <= block.Last)
+                    return (int)key;
+                block = Refill(tableName, sequence, block);
+            }
+        }
+
+        protected virtual int ReserveHi(string tableName)
+        {
+            ConnectionLease lease = connections.Acquire();
+            try
+            {
+                while (true)
+                {
+                    SqlCommand command = lease.Statements.Prepare(NextHiQuery, null);
+                    command.Parameters.Add(new SqlParameter("TableName", tableName));
+                    object hi = command.ExecuteScalar();
+                    if (hi != null)
+                        return (int)hi;
+
+                    // first block of a table
+                    command = lease.Statements.Prepare(InsertHiQuery, null);
+                    command.Parameters.Add(new SqlParameter("TableName", tableName));
+                    try
+                    {
+                        command.ExecuteNonQuery();
+                        return 0;
+                    }
+                    catch (SqlException e)
+                    {
+                        // a concurrent first insert got there before us, its row can be updated now
+                        if (e.Number != DuplicateKeyError)
+                            throw;
+                    }
+                }
+            }
+            finally
+            {
+                connections.Release(lease);
+            }
+        }
+
+        private KeySequence GetSequence(string tableName)
+        {
+            lock (sync)
+            {
+                KeySequence sequence;
+                if (sequences.TryGetValue(tableName, out sequence) == false)
+                {
+                    sequence = new KeySequence();
+                    sequences.Add(tableName, sequence);
+                }
+                return sequence;
+            }
+        }
+
+        // locked per table, a round trip to the Keys table only holds up callers of the same table
+        private KeyBlock Refill(string tableName, KeySequence sequence, KeyBlock exhausted)
+        {
+            lock (sequence.Sync)
+            {
+                if (sequence.Current != exhausted)
+                    return sequence.Current;
+
+                int hi = ReserveHi(tableName);
+                Interlocked.Increment(ref reservations);
+                // keys start at 1, so hi 0 covers 1..blockSize
+                long first = (long)hi * blockSize;
+                if (hi < 0 || first >= int.MaxValue)
+                    throw new InvalidOperationException("keys of " + tableName + " have run out, hi " + hi + " is past the int range");
+                sequence.Current = new KeyBlock(first, Math.Min(first + blockSize, int.MaxValue));
+                return sequence.Current;
+            }
+        }
+
+        private class KeySequence
+        {
+            public readonly object Sync = new object();
+            public volatile KeyBlock Current = new KeyBlock(0, 0);
+        }
+
+        private class KeyBlock
+        {
+            public long Next;
+            public readonly long Last;
+
+            public KeyBlock(long next, long last)
+            {
+                Next = next;
+                Last = last;
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+﻿namespace OrmExample.Mapping
+{
+    public interface IConnectionProvider
+    {
+        ConnectionLease Acquire();
+        void Release(ConnectionLease lease);
+    }
+}
@@ -1,13 +1,31 @@
 ﻿using System.Collections;
+using System.Collections.Generic;
+using System.Threading.Tasks;
 
 namespace OrmExample.Mapping
 {
     public interface IEntityMapper
     {
+        IMapping Mapping { get; }
         IEntity GetById(int id);
+        Task<IEntity> GetByIdAsync(int id);
         IEnumerable GetAll();
+        IEnumerable GetByIds(IEnumerable<int> ids);
+        IEnumerable FindMany(StatementSource source);
+        Task<IList<IEntity>> FindManyAsync(StatementSource source);
+        Page<IEntity> GetPage(StatementSource source, int pageSize, string continuationToken, bool registerInIdentityMap);
+        IEnumerable<IEntity> Stream(StatementSource source, bool registerInIdentityMap);
+        ColumnarResult Project(StatementSource source, params string[] columns);
+        IList<IEntity> LoadRows(IList<CachedRow> rows);
         void Insert(IEntity entity);
         void Update(IEntity entity);
         void DeleteById(int id);
+        void AddInsert(SqlBatch batch, IEntity entity);
+        void AddUpdate(SqlBatch batch, IEntity entity);
+        void AddDelete(SqlBatch batch, IEntity entity);
+        void LinksLoaded(IAssociationMapping association, int ownerId, IEnumerable<int> targetIds);
+        IList<LinkChange> GetLinkChanges(IEnumerable<IEntity> inserted);
+        void SaveLinks(IEnumerable<LinkChange> changes);
+        void Invalidate(IEntity entity);
     }
 }
\ No newline at end of file
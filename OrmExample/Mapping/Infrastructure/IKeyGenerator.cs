@@ -0,0 +1,7 @@
+﻿namespace OrmExample.Mapping
+{
+    public interface IKeyGenerator
+    {
+        int NextKey(string tableName);
+    }
+}
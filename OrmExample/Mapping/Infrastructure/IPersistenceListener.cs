@@ -0,0 +1,29 @@
+﻿using System;
+using System.Diagnostics;
+
+namespace OrmExample.Mapping
+{
+    // set through MappingConfiguration.PersistenceListener; without one nothing is timed or counted
+    public interface IPersistenceListener
+    {
+        // key is the looked up id for single row statements, null otherwise
+        void StatementExecuted(string tableName, string sql, object key, TimeSpan elapsed, int rows);
+        void IdentityMapLookup(string tableName, bool hit);
+        void EntityMapped(string tableName);
+        void LazyLoaded(string tableName);
+        void Committed(UnitOfWork unitOfWork, int flushedObjects, TimeSpan elapsed);
+    }
+
+    internal static class Timestamp
+    {
+        public static long Now()
+        {
+            return Stopwatch.GetTimestamp();
+        }
+
+        public static TimeSpan ElapsedSince(long timestamp)
+        {
+            return TimeSpan.FromTicks((Stopwatch.GetTimestamp() - timestamp) * TimeSpan.TicksPerSecond / Stopwatch.Frequency);
+        }
+    }
+}
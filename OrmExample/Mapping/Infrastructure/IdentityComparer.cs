@@ -0,0 +1,20 @@
+﻿using System.Collections.Generic;
+using System.Runtime.CompilerServices;
+
+namespace OrmExample.Mapping
+{
+    // entities override GetHashCode with their Id, which changes on insert;
+    // bookkeeping keyed by the entity itself has to use reference identity instead
+    public class IdentityComparer<T> : IEqualityComparer<T> where T : class
+    {
+        public bool Equals(T x, T y)
+        {
+            return ReferenceEquals(x, y);
+        }
+
+        public int GetHashCode(T obj)
+        {
+            return RuntimeHelpers.GetHashCode(obj);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+﻿using System;
+
+namespace OrmExample.Mapping
+{
+    // a single link row added to or removed from an owner's collection since it was loaded,
+    // or all of an owner's link rows when a collection replaced before loading is rewritten
+    public class LinkChange
+    {
+        private readonly Action<SqlBatch> addTo;
+
+        internal LinkChange(IEntity owner, Action<SqlBatch> addTo)
+        {
+            Owner = owner;
+            this.addTo = addTo;
+        }
+
+        public IEntity Owner { get; private set; }
+
+        public void AddTo(SqlBatch batch)
+        {
+            addTo(batch);
+        }
+    }
+}
@@ -1,26 +1,61 @@
 ﻿using System;
 using System.Collections.Generic;
+using System.Linq;
 
 namespace OrmExample.Mapping
 {
     static class MapperRegistry
     {
+        // the scope's registry when inside UnitOfWork.BeginScope, otherwise one per thread
         [ThreadStatic]
-        private static readonly Dictionary<Type, IEntityMapper> Registry;
+        private static Dictionary<Type, IEntityMapper> threadRegistry;
 
-        static MapperRegistry()
+        public static Dictionary<Type, IEntityMapper> Current
         {
-            Registry = new Dictionary<Type, IEntityMapper>();
+            get
+            {
+                UnitOfWorkScope scope = UnitOfWorkScope.Current;
+                if (scope != null)
+                    return scope.Mappers;
+                return threadRegistry ?? (threadRegistry = new Dictionary<Type, IEntityMapper>());
+            }
         }
 
         public static IEntityMapper GetMapper(Type t)
         {
-            return Registry[t];
+            Dictionary<Type, IEntityMapper> registry = Current;
+            lock (registry)
+            {
+                return registry[t];
+            }
         }
 
         public static void RegisterMapper(Type t, IEntityMapper modifications)
         {
-            Registry[t] = modifications;
+            Dictionary<Type, IEntityMapper> registry = Current;
+            lock (registry)
+            {
+                registry[t] = modifications;
+            }
+        }
+
+        // each mapper once, some are registered for several types
+        public static IList<IEntityMapper> GetMappers()
+        {
+            Dictionary<Type, IEntityMapper> registry = Current;
+            lock (registry)
+            {
+                return registry.Values.Distinct().ToList();
+            }
+        }
+
+        public static Dictionary<Type, IEntityMapper> CopyCurrent()
+        {
+            Dictionary<Type, IEntityMapper> registry = Current;
+            lock (registry)
+            {
+                return new Dictionary<Type, IEntityMapper>(registry);
+            }
         }
     }
-}
\ No newline at end of file
+}
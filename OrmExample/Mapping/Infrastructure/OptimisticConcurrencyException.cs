@@ -0,0 +1,23 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Linq;
+
+namespace OrmExample.Mapping
+{
+    // the rows were changed or deleted by someone else since they were read
+    public class OptimisticConcurrencyException : Exception
+    {
+        public OptimisticConcurrencyException(IList<IEntity> entities)
+            : base(FormatMessage(entities))
+        {
+            Entities = entities;
+        }
+
+        public IList<IEntity> Entities { get; private set; }
+
+        private static string FormatMessage(IEnumerable<IEntity> entities)
+        {
+            return "stale version of " + string.Join(", ", entities.Select(entity => string.Format("{0} with id {1}", entity.GetType().Name, entity.Id)));
+        }
+    }
+}
@@ -0,0 +1,58 @@
+﻿using System;
+using System.Globalization;
+using System.Text;
+
+namespace OrmExample.Mapping
+{
+    // sort key and id of the last row of a page; opaque to callers, the ordering column is kept
+    // so a token cannot be replayed against a differently ordered finder
+    internal class PageToken
+    {
+        private const char Separator = '\n';
+
+        public PageToken(string column, object sortKey, int id)
+        {
+            Column = column;
+            SortKey = sortKey;
+            Id = id;
+        }
+
+        public string Column { get; private set; }
+        public object SortKey { get; private set; }
+        public int Id { get; private set; }
+
+        public string Encode()
+        {
+            TypeCode typeCode = Convert.GetTypeCode(SortKey);
+            string value = typeCode == TypeCode.DateTime
+                               ? ((DateTime)SortKey).ToString("o", CultureInfo.InvariantCulture)
+                               : Convert.ToString(SortKey, CultureInfo.InvariantCulture);
+            // the value goes last, it is the only part that may contain the separator
+            string token = string.Join(Separator.ToString(), Column, Id.ToString(CultureInfo.InvariantCulture), typeCode.ToString(), value);
+            return Convert.ToBase64String(Encoding.UTF8.GetBytes(token));
+        }
+
+        public static PageToken Decode(string token, string expectedColumn)
+        {
+            string[] parts;
+            try
+            {
+                parts = Encoding.UTF8.GetString(Convert.FromBase64String(token)).Split(new[] { Separator }, 4);
+            }
+            catch (FormatException e)
+            {
+                throw new ArgumentException("not a continuation token", "token", e);
+            }
+            if (parts.Length != 4)
+                throw new ArgumentException("not a continuation token", "token");
+            if (string.Equals(parts[0], expectedColumn, StringComparison.OrdinalIgnoreCase) == false)
+                throw new ArgumentException("continuation token belongs to a finder ordered by " + parts[0], "token");
+
+            TypeCode typeCode = (TypeCode)Enum.Parse(typeof(TypeCode), parts[2]);
+            object sortKey = typeCode == TypeCode.DateTime
+                                 ? DateTime.Parse(parts[3], CultureInfo.InvariantCulture, DateTimeStyles.RoundtripKind)
+                                 : Convert.ChangeType(parts[3], typeCode, CultureInfo.InvariantCulture);
+            return new PageToken(parts[0], sortKey, int.Parse(parts[1], CultureInfo.InvariantCulture));
+        }
+    }
+}
@@ -0,0 +1,280 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Diagnostics;
+using System.Linq;
+using System.Runtime.CompilerServices;
+
+namespace OrmExample.Mapping
+{
+    // counters per statement and table, commit sizes and ripple load detection; safe to share between threads
+    public class PersistenceMetrics : IPersistenceListener
+    {
+        private readonly object sync = new object();
+        private readonly Dictionary<string, StatementStatistics> statements = new Dictionary<string, StatementStatistics>();
+        private readonly Dictionary<string, TableStatistics> tables = new Dictionary<string, TableStatistics>();
+        private readonly List<RippleLoad> rippleLoads = new List<RippleLoad>();
+        // distinct keys each single row statement was run with, per unit of work until it commits or runs a
+        // statement without a key against the same table; the thread default unit of work lives as long as its
+        // thread, without the second reset keys of unrelated requests would add up. Statements of other tables
+        // keep their keys, a loop of lazy loads mixes keyed and keyless reads of different tables. Null once
+        // reported, a set holds at most RippleLoadThreshold keys
+        private readonly ConditionalWeakTable<UnitOfWork, Dictionary<string, HashSet<object>>> keysPerUnitOfWork =
+            new ConditionalWeakTable<UnitOfWork, Dictionary<string, HashSet<object>>>();
+        private long commits;
+        private long flushedObjects;
+        private int largestFlush;
+        private TimeSpan commitTime;
+
+        public PersistenceMetrics()
+        {
+            RippleLoadThreshold = 10;
+        }
+
+        // same statement with this many different keys in one unit of work is reported as a ripple load
+        public int RippleLoadThreshold { get; set; }
+
+        public event Action<RippleLoad> RippleLoadDetected;
+
+        public void StatementExecuted(string tableName, string sql, object key, TimeSpan elapsed, int rows)
+        {
+            RippleLoad rippleLoad = null;
+            lock (sync)
+            {
+                StatementStatistics statement;
+                if (statements.TryGetValue(sql, out statement) == false)
+                {
+                    statement = new StatementStatistics(tableName, sql);
+                    statements.Add(sql, statement);
+                }
+                statement.Record(elapsed, rows);
+                if (key != null)
+                    rippleLoad = TrackKey(tableName, sql, key);
+                else
+                    ResetKeys(tableName);
+            }
+            if (rippleLoad != null)
+            {
+                Trace.TraceWarning("ripple load: {0} run with {1} different keys in one unit of work", rippleLoad.Sql, rippleLoad.DistinctKeys);
+                Action<RippleLoad> handler = RippleLoadDetected;
+                if (handler != null)
+                    handler(rippleLoad);
+            }
+        }
+
+        public void IdentityMapLookup(string tableName, bool hit)
+        {
+            lock (sync)
+            {
+                TableStatistics table = GetTable(tableName);
+                if (hit)
+                    table.IdentityMapHits++;
+                else
+                    table.IdentityMapMisses++;
+            }
+        }
+
+        public void EntityMapped(string tableName)
+        {
+            lock (sync)
+            {
+                GetTable(tableName).EntitiesMapped++;
+            }
+        }
+
+        public void LazyLoaded(string tableName)
+        {
+            lock (sync)
+            {
+                GetTable(tableName).LazyLoads++;
+            }
+        }
+
+        public void Committed(UnitOfWork unitOfWork, int flushed, TimeSpan elapsed)
+        {
+            lock (sync)
+            {
+                commits++;
+                flushedObjects += flushed;
+                largestFlush = Math.Max(largestFlush, flushed);
+                commitTime += elapsed;
+                keysPerUnitOfWork.Remove(unitOfWork);
+            }
+        }
+
+        public long Commits
+        {
+            get { lock (sync) return commits; }
+        }
+
+        public long FlushedObjects
+        {
+            get { lock (sync) return flushedObjects; }
+        }
+
+        public int LargestFlush
+        {
+            get { lock (sync) return largestFlush; }
+        }
+
+        public TimeSpan CommitTime
+        {
+            get { lock (sync) return commitTime; }
+        }
+
+        public IList<StatementStatistics> GetStatements()
+        {
+            lock (sync)
+            {
+                return statements.Values.Select(statement => statement.Copy()).ToList();
+            }
+        }
+
+        public IList<TableStatistics> GetTables()
+        {
+            lock (sync)
+            {
+                return tables.Values.Select(table => table.Copy()).ToList();
+            }
+        }
+
+        public IList<RippleLoad> GetRippleLoads()
+        {
+            lock (sync)
+            {
+                return rippleLoads.ToList();
+            }
+        }
+
+        private RippleLoad TrackKey(string tableName, string sql, object key)
+        {
+            UnitOfWork unitOfWork = UnitOfWork.Current;
+            if (unitOfWork == null)
+                return null;
+            Dictionary<string, HashSet<object>> keysPerStatement = keysPerUnitOfWork.GetOrCreateValue(unitOfWork);
+            HashSet<object> keys;
+            if (keysPerStatement.TryGetValue(sql, out keys) == false)
+            {
+                keys = new HashSet<object>();
+                keysPerStatement.Add(sql, keys);
+            }
+            // reported once, when the threshold is crossed; no more keys are kept for it after that
+            if (keys == null || keys.Add(key) == false || keys.Count < RippleLoadThreshold)
+                return null;
+            keysPerStatement[sql] = null;
+            RippleLoad rippleLoad = new RippleLoad(tableName, sql, keys.Count);
+            rippleLoads.Add(rippleLoad);
+            return rippleLoad;
+        }
+
+        private void ResetKeys(string tableName)
+        {
+            UnitOfWork unitOfWork = UnitOfWork.Current;
+            Dictionary<string, HashSet<object>> keysPerStatement;
+            if (unitOfWork == null || keysPerUnitOfWork.TryGetValue(unitOfWork, out keysPerStatement) == false)
+                return;
+            foreach (string sql in keysPerStatement.Keys.Where(sql => statements[sql].TableName == tableName).ToList())
+            {
+                keysPerStatement.Remove(sql);
+            }
+        }
+
+        private TableStatistics GetTable(string tableName)
+        {
+            TableStatistics table;
+            if (tables.TryGetValue(tableName, out table) == false)
+            {
+                table = new TableStatistics(tableName);
+                tables.Add(tableName, table);
+            }
+            return table;
+        }
+    }
+
+    public class StatementStatistics
+    {
+        // upper bounds of the latency histogram buckets in microseconds, the last bucket takes everything slower
+        public static readonly long[] BucketLimits = { 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 1000000 };
+
+        internal StatementStatistics(string tableName, string sql)
+        {
+            TableName = tableName;
+            Sql = sql;
+            Histogram = new long[BucketLimits.Length + 1];
+        }
+
+        public string TableName { get; private set; }
+        public string Sql { get; private set; }
+        public long Count { get; private set; }
+        public long Rows { get; private set; }
+        public TimeSpan TotalTime { get; private set; }
+        public TimeSpan MaxTime { get; private set; }
+        public long[] Histogram { get; private set; }
+
+        internal void Record(TimeSpan elapsed, int rows)
+        {
+            Count++;
+            Rows += rows;
+            TotalTime += elapsed;
+            if (elapsed > MaxTime)
+                MaxTime = elapsed;
+            long microseconds = elapsed.Ticks / 10;
+            int bucket = 0;
+            while (bucket < BucketLimits.Length && microseconds > BucketLimits[bucket])
+            {
+                bucket++;
+            }
+            Histogram[bucket]++;
+        }
+
+        internal StatementStatistics Copy()
+        {
+            StatementStatistics copy = (StatementStatistics)MemberwiseClone();
+            copy.Histogram = (long[])Histogram.Clone();
+            return copy;
+        }
+    }
+
+    public class TableStatistics
+    {
+        internal TableStatistics(string tableName)
+        {
+            TableName = tableName;
+        }
+
+        public string TableName { get; private set; }
+        public long IdentityMapHits { get; internal set; }
+        public long IdentityMapMisses { get; internal set; }
+        public long EntitiesMapped { get; internal set; }
+        public long LazyLoads { get; internal set; }
+
+        public double IdentityMapHitRatio
+        {
+            get
+            {
+                long lookups = IdentityMapHits + IdentityMapMisses;
+                return lookups == 0 ? 0 : (double)IdentityMapHits / lookups;
+            }
+        }
+
+        internal TableStatistics Copy()
+        {
+            return (TableStatistics)MemberwiseClone();
+        }
+    }
+
+    public class RippleLoad
+    {
+        public RippleLoad(string tableName, string sql, int distinctKeys)
+        {
+            TableName = tableName;
+            Sql = sql;
+            DistinctKeys = distinctKeys;
+            DetectedAt = DateTime.UtcNow;
+        }
+
+        public string TableName { get; private set; }
+        public string Sql { get; private set; }
+        public int DistinctKeys { get; private set; }
+        public DateTime DetectedAt { get; private set; }
+    }
+}
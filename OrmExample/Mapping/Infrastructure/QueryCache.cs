@@ -0,0 +1,196 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Linq;
+
+namespace OrmExample.Mapping
+{
+    // ids returned by finder queries, keyed by SQL text and parameter values; the ids are resolved
+    // through the identity map, so a hit never hands out state another unit of work has not committed
+    public class QueryCache
+    {
+        private readonly object sync = new object();
+        private readonly int capacity;
+        private readonly Dictionary<QueryKey, LinkedListNode<CacheEntry>> entries = new Dictionary<QueryKey, LinkedListNode<CacheEntry>>();
+        private readonly Dictionary<string, HashSet<QueryKey>> queriesByTable = new Dictionary<string, HashSet<QueryKey>>();
+        private readonly LinkedList<CacheEntry> leastRecentlyUsed = new LinkedList<CacheEntry>();
+        private long generation;
+        private long hits;
+        private long misses;
+        private long invalidations;
+
+        public QueryCache(int capacity)
+        {
+            if (capacity <= 0)
+                throw new ArgumentException("capacity has to be positive");
+            this.capacity = capacity;
+            MaxResultSize = 1000;
+        }
+
+        // larger results are not kept, they would crowd out many small lookups
+        public int MaxResultSize { get; set; }
+
+        // taken before a query runs and passed to Put, so a result read while one of its tables
+        // was being written is not cached
+        public long Generation
+        {
+            get { lock (sync) return generation; }
+        }
+
+        public bool TryGet(string sql, IDictionary<string, object> parameters, out int[] ids)
+        {
+            lock (sync)
+            {
+                LinkedListNode<CacheEntry> node;
+                if (entries.TryGetValue(new QueryKey(sql, parameters), out node))
+                {
+                    leastRecentlyUsed.Remove(node);
+                    leastRecentlyUsed.AddFirst(node);
+                    hits++;
+                    ids = node.Value.Ids;
+                    return true;
+                }
+                misses++;
+                ids = null;
+                return false;
+            }
+        }
+
+        public void Put(string sql, IDictionary<string, object> parameters, IEnumerable<string> tableNames, int[] ids, long readGeneration)
+        {
+            if (ids.Length > MaxResultSize)
+                return;
+            lock (sync)
+            {
+                if (readGeneration != generation)
+                    return;
+                QueryKey key = new QueryKey(sql, parameters);
+                LinkedListNode<CacheEntry> existing;
+                if (entries.TryGetValue(key, out existing))
+                    Remove(existing);
+                if (entries.Count >= capacity)
+                    Remove(leastRecentlyUsed.Last);
+                CacheEntry entry = new CacheEntry(key, tableNames.Distinct().ToArray(), ids);
+                entries.Add(key, leastRecentlyUsed.AddFirst(entry));
+                foreach (string tableName in entry.TableNames)
+                {
+                    HashSet<QueryKey> queries;
+                    if (queriesByTable.TryGetValue(tableName, out queries) == false)
+                        queriesByTable.Add(tableName, queries = new HashSet<QueryKey>());
+                    queries.Add(key);
+                }
+            }
+        }
+
+        // drops every query reading from the table, whichever rows were written
+        public void InvalidateTable(string tableName)
+        {
+            lock (sync)
+            {
+                generation++;
+                HashSet<QueryKey> queries;
+                if (queriesByTable.TryGetValue(tableName, out queries) == false)
+                    return;
+                foreach (QueryKey key in queries.ToArray())
+                {
+                    Remove(entries[key]);
+                    invalidations++;
+                }
+            }
+        }
+
+        public int Count
+        {
+            get { lock (sync) return entries.Count; }
+        }
+
+        public long Hits
+        {
+            get { lock (sync) return hits; }
+        }
+
+        public long Misses
+        {
+            get { lock (sync) return misses; }
+        }
+
+        public long Invalidations
+        {
+            get { lock (sync) return invalidations; }
+        }
+
+        public double HitRatio
+        {
+            get
+            {
+                lock (sync)
+                {
+                    long lookups = hits + misses;
+                    return lookups == 0 ? 0 : (double)hits / lookups;
+                }
+            }
+        }
+
+        private void Remove(LinkedListNode<CacheEntry> node)
+        {
+            leastRecentlyUsed.Remove(node);
+            entries.Remove(node.Value.Key);
+            foreach (string tableName in node.Value.TableNames)
+            {
+                HashSet<QueryKey> queries = queriesByTable[tableName];
+                queries.Remove(node.Value.Key);
+                if (queries.Count == 0)
+                    queriesByTable.Remove(tableName);
+            }
+        }
+
+        // parameters are ordered by name, so the order they were added in does not matter
+        private class QueryKey : IEquatable<QueryKey>
+        {
+            private readonly string sql;
+            private readonly KeyValuePair<string, object>[] parameters;
+            private readonly int hashCode;
+
+            public QueryKey(string sql, IDictionary<string, object> parameters)
+            {
+                this.sql = sql;
+                this.parameters = parameters.OrderBy(parameter => parameter.Key, StringComparer.Ordinal).ToArray();
+                hashCode = this.parameters.Aggregate(sql.GetHashCode(), (hash, parameter) =>
+                    (hash * 397) ^ parameter.Key.GetHashCode() ^ (parameter.Value == null ? 0 : parameter.Value.GetHashCode()));
+            }
+
+            public bool Equals(QueryKey other)
+            {
+                return other != null
+                       && hashCode == other.hashCode
+                       && string.Equals(sql, other.sql)
+                       && parameters.Length == other.parameters.Length
+                       && parameters.Zip(other.parameters, (mine, theirs) => mine.Key == theirs.Key && Equals(mine.Value, theirs.Value))
+                                    .All(equal => equal);
+            }
+
+            public override bool Equals(object obj)
+            {
+                return Equals(obj as QueryKey);
+            }
+
+            public override int GetHashCode()
+            {
+                return hashCode;
+            }
+        }
+
+        private class CacheEntry
+        {
+            public CacheEntry(QueryKey key, string[] tableNames, int[] ids)
+            {
+                Key = key;
+                TableNames = tableNames;
+                Ids = ids;
+            }
+
+            public QueryKey Key { get; private set; }
+            public string[] TableNames { get; private set; }
+            public int[] Ids { get; private set; }
+        }
+    }
+}
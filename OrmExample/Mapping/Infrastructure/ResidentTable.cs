@@ -0,0 +1,195 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Linq;
+
+namespace OrmExample.Mapping
+{
+    // every row of a small, read-mostly table, loaded once and then kept current by committed writes;
+    // shared like SecondLevelCache, entities are still created per identity map
+    public class ResidentTable
+    {
+        private readonly object sync = new object();
+        private readonly string tableName;
+        private readonly Dictionary<int, CachedRow> rows = new Dictionary<int, CachedRow>();
+        private readonly Dictionary<string, Dictionary<object, HashSet<int>>> hashIndexes =
+            new Dictionary<string, Dictionary<object, HashSet<int>>>(StringComparer.OrdinalIgnoreCase);
+        private readonly Dictionary<string, SortedSet<IndexEntry>> prefixIndexes =
+            new Dictionary<string, SortedSet<IndexEntry>>(StringComparer.OrdinalIgnoreCase);
+        private bool loaded;
+
+        public ResidentTable(string tableName)
+        {
+            this.tableName = tableName;
+        }
+
+        public string TableName
+        {
+            get { return tableName; }
+        }
+
+        public int Count
+        {
+            get { lock (sync) return rows.Count; }
+        }
+
+        // equality lookups, e.g. on foreign keys
+        public ResidentTable WithHashIndex(string column)
+        {
+            lock (sync)
+            {
+                hashIndexes[column] = new Dictionary<object, HashSet<int>>();
+                foreach (CachedRow row in rows.Values)
+                {
+                    AddToHash(hashIndexes[column], row[column], row.GetInt32(0));
+                }
+            }
+            return this;
+        }
+
+        // case-insensitive prefix lookups on a text column, kept sorted
+        public ResidentTable WithPrefixIndex(string column)
+        {
+            lock (sync)
+            {
+                prefixIndexes[column] = new SortedSet<IndexEntry>(rows.Values.Select(row => new IndexEntry(row[column] as string, row.GetInt32(0))));
+            }
+            return this;
+        }
+
+        // the first mapper to use the table reads it, everyone else waits for that read
+        internal void EnsureLoaded(Func<IList<CachedRow>> readAll)
+        {
+            lock (sync)
+            {
+                if (loaded)
+                    return;
+                foreach (CachedRow row in readAll())
+                {
+                    Add(row);
+                }
+                loaded = true;
+            }
+        }
+
+        internal bool TryGet(int id, out CachedRow row)
+        {
+            lock (sync) return rows.TryGetValue(id, out row);
+        }
+
+        internal IList<CachedRow> All()
+        {
+            lock (sync) return rows.Values.ToList();
+        }
+
+        internal IList<CachedRow> FindEqual(string column, object value)
+        {
+            lock (sync)
+            {
+                Dictionary<object, HashSet<int>> index;
+                if (hashIndexes.TryGetValue(column, out index) == false)
+                    return rows.Values.Where(row => Equals(row[column], value)).ToList();
+                HashSet<int> ids;
+                if (index.TryGetValue(value ?? DBNull.Value, out ids) == false)
+                    return new List<CachedRow>();
+                return ids.Select(id => rows[id]).ToList();
+            }
+        }
+
+        internal IList<CachedRow> FindPrefix(string column, string prefix)
+        {
+            lock (sync)
+            {
+                SortedSet<IndexEntry> index;
+                if (prefixIndexes.TryGetValue(column, out index) == false)
+                    return rows.Values.Where(row => IndexEntry.StartsWith(row[column] as string, prefix)).ToList();
+                IndexEntry from = new IndexEntry(prefix, int.MinValue);
+                IndexEntry to = new IndexEntry(prefix + char.MaxValue, int.MaxValue);
+                return index.GetViewBetween(from, to).Select(entry => rows[entry.Id]).ToList();
+            }
+        }
+
+        internal void Put(CachedRow row)
+        {
+            lock (sync)
+            {
+                if (loaded == false)
+                    return;
+                Remove(row.GetInt32(0));
+                Add(row);
+            }
+        }
+
+        internal void Remove(int id)
+        {
+            lock (sync)
+            {
+                CachedRow row;
+                if (rows.TryGetValue(id, out row) == false)
+                    return;
+                rows.Remove(id);
+                foreach (KeyValuePair<string, Dictionary<object, HashSet<int>>> index in hashIndexes)
+                {
+                    HashSet<int> ids;
+                    object key = row[index.Key] ?? DBNull.Value;
+                    if (index.Value.TryGetValue(key, out ids) && ids.Remove(id) && ids.Count == 0)
+                        index.Value.Remove(key);
+                }
+                foreach (KeyValuePair<string, SortedSet<IndexEntry>> index in prefixIndexes)
+                {
+                    index.Value.Remove(new IndexEntry(row[index.Key] as string, id));
+                }
+            }
+        }
+
+        private void Add(CachedRow row)
+        {
+            int id = row.GetInt32(0);
+            rows.Add(id, row);
+            foreach (KeyValuePair<string, Dictionary<object, HashSet<int>>> index in hashIndexes)
+            {
+                AddToHash(index.Value, row[index.Key], id);
+            }
+            foreach (KeyValuePair<string, SortedSet<IndexEntry>> index in prefixIndexes)
+            {
+                index.Value.Add(new IndexEntry(row[index.Key] as string, id));
+            }
+        }
+
+        private static void AddToHash(Dictionary<object, HashSet<int>> index, object key, int id)
+        {
+            HashSet<int> ids;
+            if (index.TryGetValue(key ?? DBNull.Value, out ids) == false)
+                index.Add(key ?? DBNull.Value, ids = new HashSet<int>());
+            ids.Add(id);
+        }
+
+        // case-insensitive like the default SQL Server collation, otherwise ordinal
+        private struct IndexEntry : IComparable<IndexEntry>
+        {
+            private readonly string key;
+            private readonly int id;
+
+            public IndexEntry(string key, int id)
+            {
+                this.key = key ?? string.Empty;
+                this.id = id;
+            }
+
+            public int Id
+            {
+                get { return id; }
+            }
+
+            public int CompareTo(IndexEntry other)
+            {
+                int byKey = string.Compare(key, other.key, StringComparison.OrdinalIgnoreCase);
+                return byKey != 0 ? byKey : id.CompareTo(other.id);
+            }
+
+            public static bool StartsWith(string value, string prefix)
+            {
+                return value != null && value.StartsWith(prefix, StringComparison.OrdinalIgnoreCase);
+            }
+        }
+    }
+}
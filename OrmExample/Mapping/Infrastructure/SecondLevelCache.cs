@@ -0,0 +1,174 @@
+﻿using System;
+using System.Collections.Generic;
+
+namespace OrmExample.Mapping
+{
+    // rows shared by all mappers and units of work; entities are still created per identity map,
+    // so changes made in one unit of work never leak into another before they are committed
+    public class SecondLevelCache
+    {
+        private readonly object sync = new object();
+        private readonly int capacity;
+        private readonly Dictionary<string, TimeSpan> timesToLive = new Dictionary<string, TimeSpan>();
+        private readonly Dictionary<CacheKey, LinkedListNode<CacheEntry>> entries = new Dictionary<CacheKey, LinkedListNode<CacheEntry>>();
+        private readonly LinkedList<CacheEntry> leastRecentlyUsed = new LinkedList<CacheEntry>();
+        private readonly Dictionary<string, long> generations = new Dictionary<string, long>();
+        private long hits;
+        private long misses;
+
+        public SecondLevelCache(int capacity)
+        {
+            if (capacity <= 0)
+                throw new ArgumentException("capacity has to be positive");
+            this.capacity = capacity;
+            DefaultTimeToLive = TimeSpan.MaxValue;
+        }
+
+        public TimeSpan DefaultTimeToLive { get; set; }
+
+        public void SetTimeToLive(string tableName, TimeSpan timeToLive)
+        {
+            lock (sync)
+            {
+                timesToLive[tableName] = timeToLive;
+            }
+        }
+
+        // taken before a row is read and passed to Put, so a row read while its table was being written
+        // is not cached; it would otherwise be served until evicted
+        public long GetGeneration(string tableName)
+        {
+            lock (sync) return Generation(tableName);
+        }
+
+        public bool TryGet(string tableName, int id, out CachedRow row)
+        {
+            lock (sync)
+            {
+                LinkedListNode<CacheEntry> node;
+                CacheKey key = new CacheKey(tableName, id);
+                if (entries.TryGetValue(key, out node))
+                {
+                    if (node.Value.ExpiresAt > DateTime.UtcNow)
+                    {
+                        leastRecentlyUsed.Remove(node);
+                        leastRecentlyUsed.AddFirst(node);
+                        hits++;
+                        row = node.Value.Row;
+                        return true;
+                    }
+                    Remove(node);
+                }
+                misses++;
+                row = null;
+                return false;
+            }
+        }
+
+        public void Put(string tableName, int id, CachedRow row, long readGeneration)
+        {
+            lock (sync)
+            {
+                if (readGeneration != Generation(tableName))
+                    return;
+                CacheKey key = new CacheKey(tableName, id);
+                LinkedListNode<CacheEntry> existing;
+                if (entries.TryGetValue(key, out existing))
+                    Remove(existing);
+                if (entries.Count >= capacity)
+                    Remove(leastRecentlyUsed.Last);
+                CacheEntry entry = new CacheEntry(key, row, ExpirationFor(tableName));
+                entries.Add(key, leastRecentlyUsed.AddFirst(entry));
+            }
+        }
+
+        public void Invalidate(string tableName, int id)
+        {
+            lock (sync)
+            {
+                generations[tableName] = Generation(tableName) + 1;
+                LinkedListNode<CacheEntry> node;
+                if (entries.TryGetValue(new CacheKey(tableName, id), out node))
+                    Remove(node);
+            }
+        }
+
+        public int Count
+        {
+            get { lock (sync) return entries.Count; }
+        }
+
+        public long Hits
+        {
+            get { lock (sync) return hits; }
+        }
+
+        public long Misses
+        {
+            get { lock (sync) return misses; }
+        }
+
+        private long Generation(string tableName)
+        {
+            long generation;
+            generations.TryGetValue(tableName, out generation);
+            return generation;
+        }
+
+        private DateTime ExpirationFor(string tableName)
+        {
+            TimeSpan timeToLive;
+            if (timesToLive.TryGetValue(tableName, out timeToLive) == false)
+                timeToLive = DefaultTimeToLive;
+            DateTime now = DateTime.UtcNow;
+            return timeToLive >= DateTime.MaxValue - now ? DateTime.MaxValue : now + timeToLive;
+        }
+
+        private void Remove(LinkedListNode<CacheEntry> node)
+        {
+            leastRecentlyUsed.Remove(node);
+            entries.Remove(node.Value.Key);
+        }
+
+        private struct CacheKey : IEquatable<CacheKey>
+        {
+            private readonly string tableName;
+            private readonly int id;
+
+            public CacheKey(string tableName, int id)
+            {
+                this.tableName = tableName;
+                this.id = id;
+            }
+
+            public bool Equals(CacheKey other)
+            {
+                return id == other.id && string.Equals(tableName, other.tableName);
+            }
+
+            public override bool Equals(object obj)
+            {
+                return obj is CacheKey && Equals((CacheKey)obj);
+            }
+
+            public override int GetHashCode()
+            {
+                return (tableName.GetHashCode() * 397) ^ id;
+            }
+        }
+
+        private class CacheEntry
+        {
+            public CacheEntry(CacheKey key, CachedRow row, DateTime expiresAt)
+            {
+                Key = key;
+                Row = row;
+                ExpiresAt = expiresAt;
+            }
+
+            public CacheKey Key { get; private set; }
+            public CachedRow Row { get; private set; }
+            public DateTime ExpiresAt { get; private set; }
+        }
+    }
+}
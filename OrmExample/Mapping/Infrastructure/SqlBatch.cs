@@ -0,0 +1,177 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Data;
+using System.Data.SqlClient;
+using System.Linq;
+using System.Text;
+
+namespace OrmExample.Mapping
+{
+    // SqlClient has no public addBatch/executeBatch, so a batch is a single command made of
+    // many statements whose parameter names carry a per-statement suffix
+    public class SqlBatch
+    {
+        // SQL Server accepts at most 2100 parameters per request, leave room for one more row
+        private const int ParameterLimit = 2000;
+
+        private readonly List<BatchEntry> entries = new List<BatchEntry>();
+        private readonly List<SqlParameter> parameters = new List<SqlParameter>();
+        private readonly StringBuilder commandText = new StringBuilder();
+
+        public int Count
+        {
+            get { return entries.Count; }
+        }
+
+        public string NextSuffix()
+        {
+            return "_" + entries.Count;
+        }
+
+        public bool IsFull(int batchSize)
+        {
+            return entries.Count >= batchSize || parameters.Count >= ParameterLimit;
+        }
+
+        public void Add(IEntity entity, string statement, IEnumerable<SqlParameter> statementParameters,
+                        bool returnsId, Action<IEntity> onExecuted, bool versioned = false, Action<IEntity> onCommitted = null)
+        {
+            entries.Add(new BatchEntry(entity, returnsId, onExecuted, versioned, onCommitted));
+            parameters.AddRange(statementParameters);
+            commandText.Append(statement).Append(";\n");
+        }
+
+        public IList<StatementResult> Execute(StatementCache statements, SqlTransaction transaction)
+        {
+            if (entries.Count == 0)
+                return new StatementResult[0];
+
+            int completed = 0;
+            // full batches of one mapper always produce the same text, so their command is reused
+            SqlCommand command = statements.Prepare(commandText.ToString(), transaction);
+            command.Parameters.AddRange(parameters.ToArray());
+            StatementCompletedEventHandler countRecords = (sender, args) =>
+                {
+                    if (completed < entries.Count)
+                        entries[completed++].RecordCount = args.RecordCount;
+                };
+            command.StatementCompleted += countRecords;
+            try
+            {
+                using (SqlDataReader reader = command.ExecuteReader())
+                {
+                    // only inserts produce result sets (OUTPUT INSERTED.Id), in statement order
+                    foreach (BatchEntry entry in entries.Where(e => e.ReturnsId))
+                    {
+                        reader.Read();
+                        entry.Entity.Id = reader.GetInt32(0);
+                        reader.NextResult();
+                    }
+                }
+            }
+            catch (SqlException e)
+            {
+                IEntity failed = completed < entries.Count ? entries[completed].Entity : null;
+                throw new BatchException(failed, e);
+            }
+            finally
+            {
+                command.StatementCompleted -= countRecords;
+            }
+
+            // a versioned statement that matched no row read a stale version, nothing of the batch is applied
+            List<IEntity> stale = entries.Where(e => e.Versioned && e.RecordCount == 0).Select(e => e.Entity).ToList();
+            if (stale.Count > 0)
+                throw new OptimisticConcurrencyException(stale);
+
+            foreach (BatchEntry entry in entries.Where(e => e.OnExecuted != null))
+            {
+                entry.OnExecuted(entry.Entity);
+            }
+            List<StatementResult> results = entries.Select(e => new StatementResult(e.Entity, e.RecordCount, e.OnCommitted)).ToList();
+            Clear();
+            return results;
+        }
+
+        private void Clear()
+        {
+            entries.Clear();
+            parameters.Clear();
+            commandText.Clear();
+        }
+
+        public static IEnumerable<SqlParameter> WithSuffix(IEnumerable<SqlParameter> statementParameters, string suffix)
+        {
+            foreach (SqlParameter parameter in statementParameters)
+            {
+                parameter.ParameterName = "@" + parameter.ParameterName.TrimStart('@') + suffix;
+                yield return parameter;
+            }
+        }
+
+        private class BatchEntry
+        {
+            public BatchEntry(IEntity entity, bool returnsId, Action<IEntity> onExecuted, bool versioned, Action<IEntity> onCommitted)
+            {
+                OnCommitted = onCommitted;
+                Entity = entity;
+                ReturnsId = returnsId;
+                OnExecuted = onExecuted;
+                Versioned = versioned;
+                RecordCount = -1;
+            }
+
+            public IEntity Entity { get; private set; }
+            public bool ReturnsId { get; private set; }
+            public Action<IEntity> OnExecuted { get; private set; }
+            public bool Versioned { get; private set; }
+            public Action<IEntity> OnCommitted { get; private set; }
+            public int RecordCount { get; set; }
+        }
+    }
+
+    public class StatementResult
+    {
+        // mapper state that must only change once the statement is durable, dropped with the result on rollback
+        private readonly Action<IEntity> onCommitted;
+
+        public StatementResult(IEntity entity, int recordCount)
+            : this(entity, recordCount, null)
+        {
+        }
+
+        internal StatementResult(IEntity entity, int recordCount, Action<IEntity> onCommitted)
+        {
+            Entity = entity;
+            RecordCount = recordCount;
+            this.onCommitted = onCommitted;
+        }
+
+        public IEntity Entity { get; private set; }
+        public int RecordCount { get; private set; }
+
+        internal void Committed()
+        {
+            if (onCommitted != null)
+                onCommitted(Entity);
+        }
+    }
+
+    public class BatchException : Exception
+    {
+        public BatchException(IEntity entity, Exception innerException)
+            : base(FormatMessage(entity), innerException)
+        {
+            Entity = entity;
+        }
+
+        private static string FormatMessage(IEntity entity)
+        {
+            return entity == null
+                       ? "batched statement failed"
+                       : string.Format("batched statement failed for {0} with id {1}", entity.GetType().Name, entity.Id);
+        }
+
+        public IEntity Entity { get; private set; }
+    }
+}
@@ -0,0 +1,85 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Data.SqlClient;
+using System.Threading;
+
+namespace OrmExample.Mapping
+{
+    // commands kept per connection and keyed by SQL text, least recently used ones are disposed first;
+    // SQL Server already reuses plans of parameterized statements, this saves building commands client side
+    public class StatementCache : IDisposable
+    {
+        private static long totalHits;
+        private static long totalMisses;
+
+        private readonly SqlConnection connection;
+        private readonly int capacity;
+        private readonly Dictionary<string, LinkedListNode<SqlCommand>> commands = new Dictionary<string, LinkedListNode<SqlCommand>>();
+        private readonly LinkedList<SqlCommand> leastRecentlyUsed = new LinkedList<SqlCommand>();
+
+        public StatementCache(SqlConnection connection, int capacity)
+        {
+            this.connection = connection;
+            this.capacity = capacity;
+        }
+
+        public static long TotalHits
+        {
+            get { return Interlocked.Read(ref totalHits); }
+        }
+
+        public static long TotalMisses
+        {
+            get { return Interlocked.Read(ref totalMisses); }
+        }
+
+        public long Hits { get; private set; }
+        public long Misses { get; private set; }
+
+        public SqlConnection Connection
+        {
+            get { return connection; }
+        }
+
+        // returned command has no parameters, it must not be disposed by the caller
+        public SqlCommand Prepare(string sql, SqlTransaction transaction)
+        {
+            LinkedListNode<SqlCommand> node;
+            if (commands.TryGetValue(sql, out node))
+            {
+                Hits++;
+                Interlocked.Increment(ref totalHits);
+                leastRecentlyUsed.Remove(node);
+                leastRecentlyUsed.AddFirst(node);
+            }
+            else
+            {
+                Misses++;
+                Interlocked.Increment(ref totalMisses);
+                if (commands.Count >= capacity)
+                {
+                    LinkedListNode<SqlCommand> evicted = leastRecentlyUsed.Last;
+                    leastRecentlyUsed.RemoveLast();
+                    commands.Remove(evicted.Value.CommandText);
+                    evicted.Value.Dispose();
+                }
+                node = leastRecentlyUsed.AddFirst(new SqlCommand(sql, connection));
+                commands.Add(sql, node);
+            }
+            SqlCommand command = node.Value;
+            command.Transaction = transaction;
+            command.Parameters.Clear();
+            return command;
+        }
+
+        public void Dispose()
+        {
+            foreach (SqlCommand command in leastRecentlyUsed)
+            {
+                command.Dispose();
+            }
+            leastRecentlyUsed.Clear();
+            commands.Clear();
+        }
+    }
+}
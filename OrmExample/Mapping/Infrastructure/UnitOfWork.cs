@@ -1,61 +1,298 @@
 ﻿using System;
 using System.Collections.Generic;
+using System.Data.SqlClient;
 using System.Diagnostics;
+using System.Linq;
 
 namespace OrmExample.Mapping
 {
     public class UnitOfWork
     {
+        // a field initializer would only run for the first thread, others would see null
         [ThreadStatic]
-        private static readonly UnitOfWork current = new UnitOfWork();
+        private static UnitOfWork threadDefault;
 
-        private readonly List<IEntity> newObjects = new List<IEntity>();
-        private readonly List<IEntity> dirtyObjects = new List<IEntity>();
-        private readonly List<IEntity> removedObjects = new List<IEntity>();
+        // every registered entity has exactly one node, the list it sits in is its state;
+        // lists keep registration order for the flush, the table gives constant time lookups
+        private readonly Dictionary<IEntity, LinkedListNode<IEntity>> registrations =
+            new Dictionary<IEntity, LinkedListNode<IEntity>>(new IdentityComparer<IEntity>());
+        private readonly LinkedList<IEntity> newObjects = new LinkedList<IEntity>();
+        private readonly LinkedList<IEntity> dirtyObjects = new LinkedList<IEntity>();
+        private readonly LinkedList<IEntity> removedObjects = new LinkedList<IEntity>();
+        // registrations may come from work forked inside a scope, commit holds it for the whole flush
+        private readonly object sync = new object();
+        private IConnectionProvider boundProvider;
+        private ConnectionLease boundConnection;
 
+        // the scope's unit of work when inside BeginScope, otherwise one per thread
         public static UnitOfWork Current
         {
-            get { return current; }
+            get
+            {
+                UnitOfWorkScope scope = UnitOfWorkScope.Current;
+                if (scope != null)
+                    return scope.UnitOfWork;
+                return threadDefault ?? (threadDefault = new UnitOfWork());
+            }
+        }
+
+        // Current for this logical flow (Task.Run, async continuations) until the scope is disposed;
+        // mappers registered so far come along, so forked work can commit too
+        public static UnitOfWorkScope BeginScope()
+        {
+            return new UnitOfWorkScope(new UnitOfWork(), MapperRegistry.CopyCurrent());
+        }
+
+        // objects waiting to be inserted, updated or deleted
+        public int PendingCount
+        {
+            get { lock (sync) return registrations.Count; }
         }
 
         public void RegisterNew(IEntity entity)
         {
-            Debug.Assert(entity.Id == 0);
-            Debug.Assert(dirtyObjects.Contains(entity) == false, "registered as dirty");
-            Debug.Assert(removedObjects.Contains(entity) == false, "registered as to remove");
-            Debug.Assert(newObjects.Contains(entity) == false, "already registered as new");
-            newObjects.Add(entity);
+            lock (sync)
+            {
+                Debug.Assert(entity.Id == 0);
+                Debug.Assert(IsRegisteredIn(dirtyObjects, entity) == false, "registered as dirty");
+                Debug.Assert(IsRegisteredIn(removedObjects, entity) == false, "registered as to remove");
+                Debug.Assert(IsRegisteredIn(newObjects, entity) == false, "already registered as new");
+                Register(newObjects, entity);
+            }
         }
 
         public void RegisterRemoved(IEntity entity)
         {
-            Debug.Assert(entity.Id == 0, "Id not set");
-            if (newObjects.Contains(entity))
-                newObjects.Remove(entity);
-            if (dirtyObjects.Contains(entity))
-                dirtyObjects.Remove(entity);
-            if (removedObjects.Contains(entity))
-                return;
-            removedObjects.Add(entity);
+            lock (sync)
+            {
+                Debug.Assert(entity.Id == 0, "Id not set");
+                if (IsRegisteredIn(removedObjects, entity))
+                    return;
+                Register(removedObjects, entity);
+            }
         }
 
         public void RegisterDirty(IEntity entity)
         {
-            Debug.Assert(removedObjects.Contains(entity) == false, "Object to be removed should not be marked as dirty");
-            if (entity.Id == 0)
-                return;
-            if (dirtyObjects.Contains(entity))
-                return;
-            if (newObjects.Contains(entity))
-                return;
-            dirtyObjects.Add(entity);
+            lock (sync)
+            {
+                Debug.Assert(IsRegisteredIn(removedObjects, entity) == false, "Object to be removed should not be marked as dirty");
+                if (entity.Id == 0)
+                    return;
+                if (registrations.ContainsKey(entity))
+                    return;
+                Register(dirtyObjects, entity);
+            }
+        }
+
+        public void RegisterClean(IEntity entity)
+        {
+            lock (sync)
+            {
+                LinkedListNode<IEntity> node;
+                if (registrations.TryGetValue(entity, out node) && node.List == dirtyObjects)
+                {
+                    dirtyObjects.Remove(node);
+                    registrations.Remove(entity);
+                }
+            }
+        }
+
+        public bool IsNew(IEntity entity)
+        {
+            lock (sync) return IsRegisteredIn(newObjects, entity);
+        }
+
+        public bool IsDirty(IEntity entity)
+        {
+            lock (sync) return IsRegisteredIn(dirtyObjects, entity);
+        }
+
+        public bool IsRemoved(IEntity entity)
+        {
+            lock (sync) return IsRegisteredIn(removedObjects, entity);
+        }
+
+        private bool IsRegisteredIn(LinkedList<IEntity> objects, IEntity entity)
+        {
+            LinkedListNode<IEntity> node;
+            return registrations.TryGetValue(entity, out node) && node.List == objects;
+        }
+
+        private void Register(LinkedList<IEntity> objects, IEntity entity)
+        {
+            LinkedListNode<IEntity> node;
+            if (registrations.TryGetValue(entity, out node))
+                node.List.Remove(node);
+            registrations[entity] = objects.AddLast(entity);
+        }
+
+        private void Clear(LinkedList<IEntity> objects)
+        {
+            foreach (IEntity entity in objects)
+            {
+                registrations.Remove(entity);
+            }
+            objects.Clear();
+        }
+
+        // connection shared by the writes of a commit, given back when it ends; never used for reads,
+        // a SqlConnection cannot serve the several flows a scope may fork
+        public ConnectionLease AcquireConnection(IConnectionProvider connections)
+        {
+            lock (sync)
+            {
+                if (boundConnection == null)
+                {
+                    boundConnection = connections.Acquire();
+                    boundProvider = connections;
+                }
+                return boundConnection;
+            }
+        }
+
+        internal void ReleaseConnection()
+        {
+            lock (sync)
+            {
+                if (boundConnection == null)
+                    return;
+                boundProvider.Release(boundConnection);
+                boundConnection = null;
+                boundProvider = null;
+            }
         }
 
         public void Commit()
         {
-            InsertNew();
-            UpdateDirty();
-            DeleteRemoved();
+            lock (sync)
+            {
+                try
+                {
+                    InsertNew();
+                    UpdateDirty();
+                    SaveLinks();
+                    DeleteRemoved();
+                }
+                finally
+                {
+                    ReleaseConnection();
+                }
+            }
+        }
+
+        public IList<StatementResult> Commit(IConnectionProvider connections, int batchSize)
+        {
+            lock (sync)
+            {
+                IList<StatementResult> results;
+                ConnectionLease lease = AcquireConnection(connections);
+                try
+                {
+                    using (SqlTransaction transaction = lease.Connection.BeginTransaction())
+                    {
+                        results = WriteChanges(lease.Statements, transaction, batchSize);
+                        transaction.Commit();
+                    }
+                }
+                catch
+                {
+                    RolledBack();
+                    throw;
+                }
+                finally
+                {
+                    ReleaseConnection();
+                }
+                Committed(results);
+                return results;
+            }
+        }
+
+        // for GroupCommitter, which holds SyncRoot from WriteChanges until Committed
+        internal object SyncRoot
+        {
+            get { return sync; }
+        }
+
+        internal IEntity[] Registered
+        {
+            get { lock (sync) return registrations.Keys.ToArray(); }
+        }
+
+        internal IList<StatementResult> WriteChanges(StatementCache statements, SqlTransaction transaction, int batchSize)
+        {
+            List<StatementResult> results = new List<StatementResult>();
+            results.AddRange(Flush(newObjects, (mapper, batch, entity) => mapper.AddInsert(batch, entity), batchSize, statements, transaction));
+            results.AddRange(Flush(dirtyObjects, (mapper, batch, entity) => mapper.AddUpdate(batch, entity), batchSize, statements, transaction));
+            results.AddRange(FlushLinks(batchSize, statements, transaction));
+            results.AddRange(Flush(removedObjects, (mapper, batch, entity) => mapper.AddDelete(batch, entity), batchSize, statements, transaction));
+            return results;
+        }
+
+        internal void Committed(IList<StatementResult> results)
+        {
+            // cached rows were dropped as statements ran, readers may have put them back before the commit
+            foreach (StatementResult result in results)
+            {
+                result.Committed();
+                MapperRegistry.GetMapper(result.Entity.GetType()).Invalidate(result.Entity);
+            }
+            Clear(newObjects);
+            Clear(dirtyObjects);
+            Clear(removedObjects);
+        }
+
+        // keys handed out inside a rolled back transaction name no row; the objects stay registered
+        // as new and get fresh keys when the commit is retried
+        internal void RolledBack()
+        {
+            foreach (IEntity entity in newObjects)
+            {
+                entity.Id = 0;
+            }
+        }
+
+        // one group per mapper keeps every batch to a single statement shape; groups run in
+        // registration order so keys of inserted entities are known before dependent rows are built
+        private static IEnumerable<StatementResult> Flush(IEnumerable<IEntity> entities, Action<IEntityMapper, SqlBatch, IEntity> addToBatch,
+                                                         int batchSize, StatementCache statements, SqlTransaction transaction)
+        {
+            List<StatementResult> results = new List<StatementResult>();
+            foreach (IGrouping<Type, IEntity> group in entities.GroupBy(entity => entity.GetType()))
+            {
+                IEntityMapper mapper = MapperRegistry.GetMapper(group.Key);
+                SqlBatch batch = new SqlBatch();
+                foreach (IEntity entity in group)
+                {
+                    addToBatch(mapper, batch, entity);
+                    if (batch.IsFull(batchSize))
+                        results.AddRange(batch.Execute(statements, transaction));
+                }
+                results.AddRange(batch.Execute(statements, transaction));
+            }
+            return results;
+        }
+
+        // after inserts so owners and targets have their keys, before deletes so no link points at a deleted row;
+        // links of an owner about to be deleted are not written
+        private IEnumerable<StatementResult> FlushLinks(int batchSize, StatementCache statements, SqlTransaction transaction)
+        {
+            List<StatementResult> results = new List<StatementResult>();
+            SqlBatch batch = new SqlBatch();
+            foreach (IEntityMapper mapper in MapperRegistry.GetMappers())
+            {
+                foreach (LinkChange change in mapper.GetLinkChanges(newObjects))
+                {
+                    if (IsRegisteredIn(removedObjects, change.Owner))
+                        continue;
+                    change.AddTo(batch);
+                    if (batch.IsFull(batchSize))
+                        results.AddRange(batch.Execute(statements, transaction));
+                }
+            }
+            results.AddRange(batch.Execute(statements, transaction));
+            return results;
         }
 
         private void InsertNew()
@@ -64,7 +301,7 @@ namespace OrmExample.Mapping
             {
                 MapperRegistry.GetMapper(newObject.GetType()).Insert(newObject);
             }
-            newObjects.Clear();
+            Clear(newObjects);
         }
 
         private void UpdateDirty()
@@ -75,6 +312,15 @@ namespace OrmExample.Mapping
             }
         }
 
+        private void SaveLinks()
+        {
+            foreach (IEntityMapper mapper in MapperRegistry.GetMappers())
+            {
+                // new objects were inserted and attached one by one already
+                mapper.SaveLinks(mapper.GetLinkChanges(new IEntity[0]).Where(change => IsRegisteredIn(removedObjects, change.Owner) == false).ToList());
+            }
+        }
+
         private void DeleteRemoved()
         {
             foreach (IEntity removedObject in removedObjects)
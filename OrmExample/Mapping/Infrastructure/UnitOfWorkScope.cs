@@ -0,0 +1,69 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Runtime.Remoting;
+using System.Runtime.Remoting.Messaging;
+
+namespace OrmExample.Mapping
+{
+    // kept in the logical call context, which flows into Task.Run and async continuations and is
+    // copied on write, so a scope begun in one flow never shows up in an unrelated one
+    public sealed class UnitOfWorkScope : IDisposable
+    {
+        private const string ContextKey = "OrmExample.Mapping.UnitOfWorkScope";
+        private readonly object previous;
+        private readonly bool ownsUnitOfWork;
+        private bool disposed;
+
+        internal UnitOfWorkScope(UnitOfWork unitOfWork, Dictionary<Type, IEntityMapper> mappers)
+            : this(unitOfWork, mappers, true)
+        {
+        }
+
+        private UnitOfWorkScope(UnitOfWork unitOfWork, Dictionary<Type, IEntityMapper> mappers, bool ownsUnitOfWork)
+        {
+            UnitOfWork = unitOfWork;
+            Mappers = mappers;
+            this.ownsUnitOfWork = ownsUnitOfWork;
+            previous = CallContext.LogicalGetData(ContextKey);
+            // the handle keeps the call context serializable should it ever cross an app domain
+            CallContext.LogicalSetData(ContextKey, new ObjectHandle(this));
+        }
+
+        public UnitOfWork UnitOfWork { get; private set; }
+
+        internal Dictionary<Type, IEntityMapper> Mappers { get; private set; }
+
+        internal static UnitOfWorkScope Current
+        {
+            get
+            {
+                ObjectHandle handle = CallContext.LogicalGetData(ContextKey) as ObjectHandle;
+                return handle == null ? null : (UnitOfWorkScope)handle.Unwrap();
+            }
+        }
+
+        // pins the caller's unit of work and mappers, thread-static ones included, for code that
+        // continues on another thread after an await
+        internal static UnitOfWorkScope Capture()
+        {
+            return Borrow(UnitOfWork.Current, MapperRegistry.Current);
+        }
+
+        // like Capture, for a unit of work captured earlier on another thread
+        internal static UnitOfWorkScope Borrow(UnitOfWork unitOfWork, Dictionary<Type, IEntityMapper> mappers)
+        {
+            return new UnitOfWorkScope(unitOfWork, mappers, false);
+        }
+
+        // gives back a connection bound by the unit of work even if it never committed
+        public void Dispose()
+        {
+            if (disposed)
+                return;
+            disposed = true;
+            if (ownsUnitOfWork)
+                UnitOfWork.ReleaseConnection();
+            CallContext.LogicalSetData(ContextKey, previous);
+        }
+    }
+}
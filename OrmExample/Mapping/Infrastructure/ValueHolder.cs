@@ -0,0 +1,44 @@
+﻿using System;
+
+namespace OrmExample.Mapping
+{
+    // loads its value at most once, even when first read by several threads at the same time;
+    // a null result counts as loaded, a failed load is tried again on the next read
+    public class ValueHolder<T>
+    {
+        private readonly object sync = new object();
+        private Func<T> loader;
+        private T value;
+        private volatile bool loaded;
+
+        public ValueHolder(Func<T> loader)
+        {
+            this.loader = loader;
+        }
+
+        public bool IsLoaded
+        {
+            get { return loaded; }
+        }
+
+        public T Value
+        {
+            get
+            {
+                if (loaded == false)
+                {
+                    lock (sync)
+                    {
+                        if (loaded == false)
+                        {
+                            value = loader();
+                            loaded = true;
+                            loader = null;
+                        }
+                    }
+                }
+                return value;
+            }
+        }
+    }
+}
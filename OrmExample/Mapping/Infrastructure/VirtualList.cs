@@ -0,0 +1,92 @@
+﻿using System.Collections;
+using System.Collections.Generic;
+
+namespace OrmExample.Mapping
+{
+    // list whose content is loaded on first use
+    public class VirtualList<T> : IList<T>
+    {
+        private readonly ValueHolder<IList<T>> source;
+
+        public VirtualList(ValueHolder<IList<T>> source)
+        {
+            this.source = source;
+        }
+
+        public bool IsLoaded
+        {
+            get { return source.IsLoaded; }
+        }
+
+        private IList<T> Source
+        {
+            get { return source.Value; }
+        }
+
+        public IEnumerator<T> GetEnumerator()
+        {
+            return Source.GetEnumerator();
+        }
+
+        IEnumerator IEnumerable.GetEnumerator()
+        {
+            return GetEnumerator();
+        }
+
+        public void Add(T item)
+        {
+            Source.Add(item);
+        }
+
+        public void Clear()
+        {
+            Source.Clear();
+        }
+
+        public bool Contains(T item)
+        {
+            return Source.Contains(item);
+        }
+
+        public void CopyTo(T[] array, int arrayIndex)
+        {
+            Source.CopyTo(array, arrayIndex);
+        }
+
+        public bool Remove(T item)
+        {
+            return Source.Remove(item);
+        }
+
+        public int Count
+        {
+            get { return Source.Count; }
+        }
+
+        public bool IsReadOnly
+        {
+            get { return Source.IsReadOnly; }
+        }
+
+        public int IndexOf(T item)
+        {
+            return Source.IndexOf(item);
+        }
+
+        public void Insert(int index, T item)
+        {
+            Source.Insert(index, item);
+        }
+
+        public void RemoveAt(int index)
+        {
+            Source.RemoveAt(index);
+        }
+
+        public T this[int index]
+        {
+            get { return Source[index]; }
+            set { Source[index] = value; }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Threading;
+
+namespace OrmExample.Mapping
+{
+    public class MappingConfiguration
+    {
+        private readonly Dictionary<string, ResidentTable> residentTables =
+            new Dictionary<string, ResidentTable>(StringComparer.OrdinalIgnoreCase);
+        private readonly Dictionary<string, string> versionColumns =
+            new Dictionary<string, string>(StringComparer.OrdinalIgnoreCase);
+        private readonly Dictionary<string, IKeyGenerator> keyGenerators =
+            new Dictionary<string, IKeyGenerator>(StringComparer.OrdinalIgnoreCase);
+
+        public MappingConfiguration(string connectionString)
+        {
+            ConnectionString = connectionString;
+            ConnectionProvider = new DirectConnectionProvider(connectionString);
+            BatchFetchSize = 100;
+            MaxConcurrentQueries = 8;
+        }
+
+        public string ConnectionString { get; private set; }
+
+        // DirectConnectionProvider unless a ConnectionPool is set; cached statements are only reused with the
+        // pool, the direct provider opens a new SqlConnection and with it an empty statement cache per operation
+        public IConnectionProvider ConnectionProvider { get; set; }
+
+        // the writes of a commit use one connection, finders keep taking their own
+        public bool BindConnectionToUnitOfWork { get; set; }
+
+        // lazy associations start reading their link rows in the background as soon as the owners are loaded,
+        // with one query per result set
+        public bool PrefetchLazyAssociations { get; set; }
+
+        // optional, e.g. PersistenceMetrics; null keeps the mappers free of any timing
+        public IPersistenceListener PersistenceListener { get; set; }
+
+        // optional, shared between contexts and threads
+        public SecondLevelCache SecondLevelCache { get; set; }
+
+        // optional, shared like SecondLevelCache; FindMany then remembers the ids each query returned
+        public QueryCache QueryCache { get; set; }
+
+        // the whole table is kept in memory and by-id, ByValue and ByPrefix finders are answered from it;
+        // meant for small tables written only through these mappers
+        public void AddResidentTable(ResidentTable table)
+        {
+            residentTables.Add(table.TableName, table);
+        }
+
+        internal ResidentTable GetResidentTable(string tableName)
+        {
+            ResidentTable table;
+            residentTables.TryGetValue(tableName, out table);
+            return table;
+        }
+
+        // updates and deletes of the table's hand-written mapping then check and bump the column, which must be
+        // an INT NOT NULL DEFAULT 0 (scripts/addClientsVersion.sql for Clients); attribute mappings use [Table]
+        public void AddVersionColumn(string tableName, string column)
+        {
+            versionColumns.Add(tableName, column);
+        }
+
+        internal string GetVersionColumn(string tableName)
+        {
+            string column;
+            versionColumns.TryGetValue(tableName, out column);
+            return column;
+        }
+
+        // keys of the table are then assigned before insert, its Id column must not be IDENTITY; every
+        // table created by scripts/ is, so this is only for tables created without it
+        public void AddKeyGenerator(string tableName, IKeyGenerator keyGenerator)
+        {
+            keyGenerators.Add(tableName, keyGenerator);
+        }
+
+        internal IKeyGenerator GetKeyGenerator(string tableName)
+        {
+            IKeyGenerator keyGenerator;
+            keyGenerators.TryGetValue(tableName, out keyGenerator);
+            return keyGenerator;
+        }
+
+        // optional, shared between contexts; SaveChanges then joins concurrent commits into one transaction
+        public GroupCommitter GroupCommitter { get; set; }
+
+        // keys per WHERE Id IN (...) query when referenced entities are fetched together
+        public int BatchFetchSize { get; set; }
+
+        // async finders of all mappers built from this configuration share these slots,
+        // each running query holds its own connection
+        public int MaxConcurrentQueries
+        {
+            get { return maxConcurrentQueries; }
+            set
+            {
+                if (value < 1)
+                    throw new ArgumentOutOfRangeException("value", "at least one query has to be allowed");
+                maxConcurrentQueries = value;
+                QueryThrottle = new SemaphoreSlim(value, value);
+            }
+        }
+
+        internal SemaphoreSlim QueryThrottle { get; private set; }
+
+        private int maxConcurrentQueries;
+    }
+}
@@ -1,4 +1,6 @@
-﻿using System.Configuration;
+﻿using System.Collections.Generic;
+using System.Configuration;
+using System.Linq;
 using OrmExample.Entities;
 
 namespace OrmExample.Mapping
@@ -6,17 +8,30 @@ namespace OrmExample.Mapping
     public class MappingContext
     {
         private readonly ClientMapper clientMapper;
-        private readonly ProductMapper productMapper;
-        private readonly DiscountMapper discountMapper;
+        private readonly GenericMapper<Product> productMapper;
+        private readonly GenericMapper<Discount> discountMapper;
         private readonly DiscountPoliciesMapper discountPoliciesMapper;
+        private readonly IConnectionProvider connectionProvider;
+        private readonly AssociationTableLoader associationLoader;
+        private readonly IPersistenceListener listener;
+        private readonly GroupCommitter groupCommitter;
 
         public MappingContext(string connectionStringName)
+            : this(new MappingConfiguration(ConfigurationManager.ConnectionStrings[connectionStringName].ConnectionString))
         {
-            string connectionString = ConfigurationManager.ConnectionStrings[connectionStringName].ConnectionString;
-            clientMapper = new ClientMapper(connectionString);
-            productMapper = new ProductMapper(connectionString);
-            discountMapper = new DiscountMapper(connectionString);
-            discountPoliciesMapper = new DiscountPoliciesMapper(connectionString);
+        }
+
+        public MappingContext(MappingConfiguration configuration)
+        {
+            connectionProvider = configuration.ConnectionProvider;
+            associationLoader = new AssociationTableLoader(configuration.ConnectionProvider, configuration.BatchFetchSize,
+                                                           configuration.PersistenceListener);
+            listener = configuration.PersistenceListener;
+            groupCommitter = configuration.GroupCommitter;
+            clientMapper = new ClientMapper(configuration);
+            productMapper = new GenericMapper<Product>(configuration);
+            discountMapper = new GenericMapper<Discount>(configuration);
+            discountPoliciesMapper = new DiscountPoliciesMapper(configuration);
         }
 
         public IMapper<Client> ClientMapper
@@ -39,9 +54,29 @@ namespace OrmExample.Mapping
             get { return discountPoliciesMapper; }
         }
 
+        // replaces the Offers of all given clients, with one query per BatchFetchSize clients
+        public void LoadOffers(IEnumerable<Client> clients, AssociationLoadMode mode)
+        {
+            associationLoader.Load(clients.Cast<IEntity>(), new ClientOffersMapping(), mode);
+        }
+
+        // number of statements sent per round trip on SaveChanges, 0 flushes object by object;
+        // ignored with a GroupCommitter, which has its own
+        public int BatchSize { get; set; }
+
         public void SaveChanges()
         {
-            UnitOfWork.Current.Commit();
+            UnitOfWork unitOfWork = UnitOfWork.Current;
+            long started = listener != null ? Timestamp.Now() : 0;
+            int pending = unitOfWork.PendingCount;
+            if (groupCommitter != null)
+                groupCommitter.Commit(unitOfWork);
+            else if (BatchSize > 0)
+                unitOfWork.Commit(connectionProvider, BatchSize);
+            else
+                unitOfWork.Commit();
+            if (listener != null)
+                listener.Committed(unitOfWork, pending, Timestamp.ElapsedSince(started));
         }
     }
 }
@@ -0,0 +1,24 @@
+﻿using System.Collections.Generic;
+
+namespace OrmExample.Mapping
+{
+    // one page of an ordered finder; pass ContinuationToken back to get the next one
+    public class Page<T>
+    {
+        public Page(IList<T> items, string continuationToken)
+        {
+            Items = items;
+            ContinuationToken = continuationToken;
+        }
+
+        public IList<T> Items { get; private set; }
+
+        // null on the last page
+        public string ContinuationToken { get; private set; }
+
+        public bool IsLast
+        {
+            get { return ContinuationToken == null; }
+        }
+    }
+}
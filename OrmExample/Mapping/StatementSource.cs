@@ -0,0 +1,105 @@
+﻿using System.Collections.Generic;
+
+namespace OrmExample.Mapping
+{
+    // WHERE clause of a finder together with its parameter values; columns and table come from the mapping
+    public class StatementSource
+    {
+        private readonly Dictionary<string, object> parameters = new Dictionary<string, object>();
+        private readonly List<string> joinedTables = new List<string>();
+        private readonly List<string> fetchedReferences = new List<string>();
+
+        public StatementSource()
+            : this(string.Empty)
+        {
+        }
+
+        public StatementSource(string where)
+        {
+            Where = where;
+        }
+
+        public string Where { get; private set; }
+
+        // set by ByValue and ByPrefix, which a ResidentTable answers without running the SQL
+        internal string MatchColumn { get; private set; }
+        internal object MatchValue { get; private set; }
+        internal bool MatchesPrefix { get; private set; }
+
+        // a single column, ties are broken by Id; GetPage seeks on both, so the column must not be NULL
+        public string OrderByColumn { get; private set; }
+
+        public bool Descending { get; private set; }
+
+        public IDictionary<string, object> Parameters
+        {
+            get { return parameters; }
+        }
+
+        // tables other than the mapped one that the WHERE clause reads, e.g. in a subquery;
+        // a cached result is dropped when any of them is written
+        public IEnumerable<string> JoinedTables
+        {
+            get { return joinedTables; }
+        }
+
+        // foreign key columns whose referenced rows are joined in and mapped from the same row
+        public IEnumerable<string> FetchedReferences
+        {
+            get { return fetchedReferences; }
+        }
+
+        public static StatementSource ByValue(string column, object value)
+        {
+            StatementSource source = new StatementSource(column + " = @" + column).With(column, value);
+            source.MatchColumn = column;
+            source.MatchValue = value;
+            return source;
+        }
+
+        // case-insensitive under the default collation, as is the resident prefix index
+        public static StatementSource ByPrefix(string column, string prefix)
+        {
+            string pattern = prefix.Replace("\\", "\\\\").Replace("%", "\\%").Replace("_", "\\_").Replace("[", "\\[") + "%";
+            StatementSource source = new StatementSource(column + " LIKE @" + column + " ESCAPE '\\'").With(column, pattern);
+            source.MatchColumn = column;
+            source.MatchValue = prefix;
+            source.MatchesPrefix = true;
+            return source;
+        }
+
+        public StatementSource With(string name, object value)
+        {
+            parameters[name] = value;
+            return this;
+        }
+
+        public StatementSource OrderBy(string column)
+        {
+            OrderByColumn = column;
+            Descending = false;
+            return this;
+        }
+
+        public StatementSource OrderByDescending(string column)
+        {
+            OrderByColumn = column;
+            Descending = true;
+            return this;
+        }
+
+        // e.g. Fetch("Product_Id") on discounts; a reference that is already loaded is not mapped again
+        public StatementSource Fetch(string referenceColumn)
+        {
+            if (fetchedReferences.Contains(referenceColumn) == false)
+                fetchedReferences.Add(referenceColumn);
+            return this;
+        }
+
+        public StatementSource ReadsFrom(params string[] tableNames)
+        {
+            joinedTables.AddRange(tableNames);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+﻿using System;
+
+namespace OrmExample.Mapping
+{
+    // marks an entity for AttributeMapping, which maps the [Column] properties to this table
+    [AttributeUsage(AttributeTargets.Class, Inherited = false)]
+    public sealed class TableAttribute : Attribute
+    {
+        public TableAttribute(string name)
+        {
+            Name = name;
+        }
+
+        public string Name { get; private set; }
+
+        // optional, see IVersionedMapping
+        public string VersionColumn { get; set; }
+    }
+}
@@ -19,6 +19,9 @@ using System.Runtime.InteropServices;
 // COM, set the ComVisible attribute to true on that type.
 [assembly: ComVisible(false)]
 
+// benchmarks drive internal mappings and the mapper registry directly
+[assembly: InternalsVisibleTo("OrmExample.Benchmarks")]
+
 // The following GUID is for the ID of the typelib if this project is exposed to COM
 [assembly: Guid("8428a7bc-0736-4955-94a1-820849319576")]
 
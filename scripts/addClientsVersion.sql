@@ -0,0 +1,3 @@
+﻿IF COL_LENGTH('dbo.Clients', 'Version') IS NULL
+    ALTER TABLE [dbo].[Clients]
+        ADD [Version] INT NOT NULL CONSTRAINT [DF_dbo.Clients_Version] DEFAULT 0;
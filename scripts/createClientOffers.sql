@@ -0,0 +1,12 @@
+﻿CREATE TABLE [dbo].[ClientOffers] (
+    [Client_Id]   INT NOT NULL,
+    [Discount_Id] INT NOT NULL,
+    CONSTRAINT [PK_dbo.ClientOffers] PRIMARY KEY CLUSTERED ([Client_Id] ASC, [Discount_Id] ASC),
+    CONSTRAINT [FK_dbo.ClientOffers_dbo.Clients_Client_Id] FOREIGN KEY ([Client_Id]) REFERENCES [dbo].[Clients] ([Id]),
+    CONSTRAINT [FK_dbo.ClientOffers_dbo.Discounts_Discount_Id] FOREIGN KEY ([Discount_Id]) REFERENCES [dbo].[Discounts] ([Id])
+);
+
+
+GO
+CREATE NONCLUSTERED INDEX [IX_Discount_Id]
+    ON [dbo].[ClientOffers]([Discount_Id] ASC);
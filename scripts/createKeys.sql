@@ -0,0 +1,5 @@
+﻿CREATE TABLE [dbo].[Keys] (
+    [TableName] NVARCHAR (128) NOT NULL,
+    [NextHi]    INT            NOT NULL,
+    CONSTRAINT [PK_dbo.Keys] PRIMARY KEY CLUSTERED ([TableName] ASC)
+);